@@ -1,6 +1,7 @@
 package me.gorgeousone.netherview;
 
 import me.gorgeousone.netherview.blocktype.BlockType;
+import me.gorgeousone.netherview.blocktype.BlockTypeRegistry;
 import me.gorgeousone.netherview.bstats.Metrics;
 import me.gorgeousone.netherview.cmdframework.command.ParentCommand;
 import me.gorgeousone.netherview.cmdframework.handlers.CommandHandler;
@@ -8,10 +9,12 @@ import me.gorgeousone.netherview.commmands.EnableDebugCommand;
 import me.gorgeousone.netherview.commmands.ListPortalsCommand;
 import me.gorgeousone.netherview.commmands.PortalInfoCommand;
 import me.gorgeousone.netherview.commmands.ReloadCommand;
+import me.gorgeousone.netherview.handlers.BlockUpdateQueue;
 import me.gorgeousone.netherview.handlers.PortalHandler;
 import me.gorgeousone.netherview.handlers.ViewHandler;
 import me.gorgeousone.netherview.listeners.BlockListener;
 import me.gorgeousone.netherview.listeners.PlayerMoveListener;
+import me.gorgeousone.netherview.listeners.PlayerQuitListener;
 import me.gorgeousone.netherview.listeners.TeleportListener;
 import me.gorgeousone.netherview.portal.PortalLocator;
 import me.gorgeousone.netherview.updatechecks.UpdateCheck;
@@ -45,6 +48,7 @@ public final class NetherView extends JavaPlugin {
 	
 	private PortalHandler portalHandler;
 	private ViewHandler viewHandler;
+	private BlockUpdateQueue blockUpdateQueue;
 	
 	private Set<UUID> worldsWithPortalViewing;
 	
@@ -53,6 +57,10 @@ public final class NetherView extends JavaPlugin {
 	
 	private boolean hidePortalBlocks;
 	private boolean cancelTeleportWhenLinking;
+	private boolean zeroCopyProjections;
+	private int cacheBuildMillisPerTick;
+	private long cacheMemoryBudget;
+	private long cacheExpirationMillis;
 	private boolean debugMessagesEnabled;
 	
 	private HashMap<World.Environment, BlockType> worldBorderBlockTypes;
@@ -68,6 +76,9 @@ public final class NetherView extends JavaPlugin {
 		
 		portalHandler = new PortalHandler(this);
 		viewHandler = new ViewHandler(this, portalHandler);
+		portalHandler.setCacheLayerListener(viewHandler::updateProjections);
+		portalHandler.setProjectionRemovalListener(viewHandler::removeProjectionViewers);
+		blockUpdateQueue = new BlockUpdateQueue(this, portalHandler, viewHandler);
 		
 		//do not register listeners or commands before creating handlers
 		registerListeners();
@@ -80,7 +91,7 @@ public final class NetherView extends JavaPlugin {
 	
 	public void reload() {
 		
-		onDisable();
+		resetHandlers();
 		loadConfigData();
 		checkForUpdates();
 	}
@@ -88,10 +99,23 @@ public final class NetherView extends JavaPlugin {
 	@Override
 	public void onDisable() {
 		
+		resetHandlers();
+		portalHandler.shutdown();
+	}
+	
+	/**
+	 * Saves the portals and clears all handlers. The cache executor of the portal handler keeps running for reloads.
+	 */
+	private void resetHandlers() {
+		
 		savePortalsToConfig();
+		
+		//apply the changes of the last tick before the block caches are saved
+		blockUpdateQueue.flush();
+		blockUpdateQueue.reset();
 		viewHandler.reset();
 		portalHandler.reset();
-		portalHandler.shutdown();
+		BlockTypeRegistry.clearWrappedBlockData();
 	}
 	
 	public int getPortalProjectionDist() {
@@ -110,6 +134,34 @@ public final class NetherView extends JavaPlugin {
 		return cancelTeleportWhenLinking;
 	}
 	
+	/**
+	 * Returns true if projection caches should read their blocks from the source block cache instead of copying them.
+	 */
+	public boolean useZeroCopyProjections() {
+		return zeroCopyProjections;
+	}
+	
+	/**
+	 * Returns the time in milliseconds that can be spent on adding copied layers to block caches each tick.
+	 */
+	public int getCacheBuildMillisPerTick() {
+		return cacheBuildMillisPerTick;
+	}
+	
+	/**
+	 * Returns the count of bytes the block caches and projection caches of all portals may use together.
+	 */
+	public long getCacheMemoryBudget() {
+		return cacheMemoryBudget;
+	}
+	
+	/**
+	 * Returns the time in milliseconds after which the caches of a portal are dropped when it is not viewed.
+	 */
+	public long getCacheExpirationMillis() {
+		return cacheExpirationMillis;
+	}
+	
 	public boolean canCreatePortalViews(World world) {
 		return worldsWithPortalViewing.contains(world.getUID());
 	}
@@ -155,7 +207,8 @@ public final class NetherView extends JavaPlugin {
 		PluginManager manager = Bukkit.getPluginManager();
 		manager.registerEvents(new TeleportListener(this, portalHandler), this);
 		manager.registerEvents(new PlayerMoveListener(this, viewHandler), this);
-		manager.registerEvents(new BlockListener(this, portalHandler, viewHandler), this);
+		manager.registerEvents(new PlayerQuitListener(viewHandler), this);
+		manager.registerEvents(new BlockListener(this, portalHandler, viewHandler, blockUpdateQueue), this);
 	}
 	
 	private void loadConfigData() {
@@ -171,6 +224,10 @@ public final class NetherView extends JavaPlugin {
 		portalDisplayRangeSquared = (int) Math.pow(getConfig().getInt("portal-display-range", 32), 2);
 		hidePortalBlocks = getConfig().getBoolean("hide-portal-blocks", true);
 		cancelTeleportWhenLinking = getConfig().getBoolean("cancel-teleport-when-linking-portals", true);
+		zeroCopyProjections = getConfig().getBoolean("zero-copy-projections", true);
+		cacheBuildMillisPerTick = Math.max(1, getConfig().getInt("cache-build-millis-per-tick", 5));
+		cacheMemoryBudget = Math.max(1, getConfig().getLong("cache-memory-budget-mb", 256)) * 1024 * 1024;
+		cacheExpirationMillis = Math.max(1, getConfig().getLong("cache-expiration-minutes", 10)) * 60 * 1000;
 		
 		setDebugMessagesEnabled(getConfig().getBoolean("debug-messages", false));
 		
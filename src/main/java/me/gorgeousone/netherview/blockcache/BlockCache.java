@@ -1,39 +1,133 @@
 package me.gorgeousone.netherview.blockcache;
 
-import me.gorgeousone.netherview.FacingUtils;
 import me.gorgeousone.netherview.blocktype.BlockType;
 import me.gorgeousone.netherview.portal.Portal;
 import me.gorgeousone.netherview.threedstuff.BlockVec;
 import org.bukkit.World;
 import org.bukkit.util.Vector;
 
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * View of the blocks of a cuboid in front of or behind a portal. The block types are read from the sections of a shared
+ * {@link WorldMirror} covering the cuboid and the blocks around it, the cache itself only keeps a bitset of the blocks
+ * that are listed as visible. A block is visible as long as any of its 6 neighbours is not occluding (has an open face).
+ * Non occluding blocks in the border of the cache are shown as the border block type and count as occluding.
+ * <p>
+ * Caches are built in layers parallel to the portal, starting with the one closest to it.
+ * Blocks of layers that are not built yet are treated as not visible. Their visibility is copied from chunk snapshots,
+ * so block changes since then are remembered and the visibility around them is checked again when the layers are added.
+ */
 public class BlockCache {
 	
+	//face indices of the open face masks. The opposite face of a face is always face ^ 1
+	static final int[] FACE_DX = {1, -1, 0, 0, 0, 0};
+	static final int[] FACE_DY = {0, 0, 1, -1, 0, 0};
+	static final int[] FACE_DZ = {0, 0, 0, 0, 1, -1};
+	
 	private Portal portal;
-	private BlockType[][][] blockCopies;
+	private CacheLayout layout;
 	private BlockVec min;
 	private BlockVec max;
 	
+	//sections covering the cache and one block around it, ordered like a cache layout
+	private WorldMirror mirror;
+	private MirrorSection[] sections;
+	private int minSectionX;
+	private int minSectionY;
+	private int minSectionZ;
+	private int sectionCountY;
+	private int sectionCountZ;
+	private boolean released;
+	
+	private BitSet visibleBlocks;
+	
 	private Vector facing;
 	private BlockType borderType;
 	
+	private int layerCount;
+	private int builtLayerCount;
+	
+	//changed blocks that can affect the visibility of layers not built yet
+	private Set<BlockVec> changesWhileBuilding;
+	
+	//stamp of the chunks the blocks were copied from and whether the blocks changed since they were written to or read from disk
+	private long chunkStamp;
+	private boolean persisted;
+	
+	/**
+	 * Creates an empty block cache and acquires the mirror sections it covers.
+	 * The layers of it are added with {@link #addLayer(CacheLayer)} once the sections around them are filled.
+	 */
 	public BlockCache(Portal portal,
-	                  BlockVec offset,
-	                  BlockType[][][] blockCopies,
+	                  CacheLayout layout,
 	                  Vector facing,
-	                  BlockType borderType) {
+	                  BlockType borderType,
+	                  WorldMirror mirror) {
 		
 		this.portal = portal;
-		this.blockCopies = blockCopies;
-		this.min = offset.clone();
-		this.max = offset.clone().add(sourceCacheSize());
+		this.layout = layout;
+		this.min = layout.getMin();
+		this.max = layout.getMax();
+		
+		this.visibleBlocks = new BitSet(layout.getVolume());
 		
 		this.facing = facing;
 		this.borderType = borderType;
+		this.layerCount = facing.getX() != 0 ? layout.getSizeX() : layout.getSizeZ();
+		this.changesWhileBuilding = new HashSet<>();
+		
+		this.mirror = mirror;
+		acquireSections();
+		
+		//the bitset of visible blocks is allocated for the whole cache up front
+		mirror.charge(portal, getVisibleBlocksBytes());
 	}
 	
-	private BlockVec sourceCacheSize() {
-		return new BlockVec(blockCopies.length, blockCopies[0].length, blockCopies[0][0].length);
+	private void acquireSections() {
+		
+		//the max of the cache is exclusive, so it is the block right behind the cache already
+		minSectionX = (min.getX() - 1) >> 4;
+		minSectionY = (min.getY() - 1) >> 4;
+		minSectionZ = (min.getZ() - 1) >> 4;
+		int sectionCountX = (max.getX() >> 4) - minSectionX + 1;
+		sectionCountY = (max.getY() >> 4) - minSectionY + 1;
+		sectionCountZ = (max.getZ() >> 4) - minSectionZ + 1;
+		
+		sections = new MirrorSection[sectionCountX * sectionCountZ * sectionCountY];
+		int i = 0;
+		
+		for (int sectionX = minSectionX; sectionX < minSectionX + sectionCountX; sectionX++) {
+			for (int sectionZ = minSectionZ; sectionZ < minSectionZ + sectionCountZ; sectionZ++) {
+				for (int sectionY = minSectionY; sectionY < minSectionY + sectionCountY; sectionY++) {
+					sections[i++] = mirror.acquire(sectionX, sectionY, sectionZ, this);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Releases the mirror sections of the cache. Should be called when the cache is not used anymore.
+	 */
+	public void release() {
+		
+		if (released) {
+			return;
+		}
+		
+		for (MirrorSection section : sections) {
+			mirror.release(section, this);
+		}
+		
+		mirror.charge(portal, -getVisibleBlocksBytes());
+		changesWhileBuilding.clear();
+		released = true;
 	}
 	
 	public Portal getPortal() {
@@ -52,24 +146,60 @@ public class BlockCache {
 		return max.clone();
 	}
 	
+	public CacheLayout getLayout() {
+		return layout;
+	}
+	
+	/**
+	 * Returns the mirror sections covering the cache and the blocks around it (y innermost, then z, then x).
+	 */
+	MirrorSection[] getSections() {
+		return sections;
+	}
+	
+	/**
+	 * Returns the index in {@link #getSections()} of the section containing the block position.
+	 * The position has to be inside the cache or right next to it.
+	 */
+	int sectionIndexOf(int x, int y, int z) {
+		return (((x >> 4) - minSectionX) * sectionCountZ + (z >> 4) - minSectionZ) * sectionCountY + (y >> 4) - minSectionY;
+	}
+	
+	private long getVisibleBlocksBytes() {
+		return layout.getVolume() / 8;
+	}
+	
 	public boolean contains(BlockVec loc) {
-		return loc.getX() >= min.getX() && loc.getX() < max.getX() &&
-		       loc.getY() >= min.getY() && loc.getY() < max.getY() &&
-		       loc.getZ() >= min.getZ() && loc.getZ() < max.getZ();
+		return layout.contains(loc);
+	}
+	
+	/**
+	 * Returns true if a change of the block can affect the cache, which is the case inside of it and right next to it.
+	 */
+	public boolean isAffectedBy(BlockVec loc) {
+		
+		int x = loc.getX();
+		int y = loc.getY();
+		int z = loc.getZ();
+		
+		return x >= min.getX() - 1 && x <= max.getX() &&
+		       y >= min.getY() - 1 && y <= max.getY() &&
+		       z >= min.getZ() - 1 && z <= max.getZ();
 	}
 	
 	/**
 	 * Returns true if the block is at any position bordering the cuboid except the side facing the portal.
 	 */
 	public boolean isBorder(BlockVec loc) {
+		return isBorder(loc.getX(), loc.getY(), loc.getZ());
+	}
+	
+	public boolean isBorder(int x, int y, int z) {
 		
-		if (loc.getY() == min.getY() || loc.getY() == max.getY() - 1) {
+		if (y == min.getY() || y == max.getY() - 1) {
 			return true;
 		}
 		
-		int x = loc.getX();
-		int z = loc.getZ();
-		
 		int minX = min.getX();
 		int minZ = min.getZ();
 		int maxX = max.getX() - 1;
@@ -103,61 +233,379 @@ public class BlockCache {
 	public Vector getFacing() {
 		return facing.clone();
 	}
-
-	public BlockType getBlockTypeAt(BlockVec blockPos) {
+	
+	/**
+	 * Returns the count of layers between the portal and the back wall of the cache.
+	 */
+	public int getLayerCount() {
+		return layerCount;
+	}
+	
+	public int getBuiltLayerCount() {
+		return builtLayerCount;
+	}
+	
+	public boolean isBuilt() {
+		return builtLayerCount == layerCount;
+	}
+	
+	/**
+	 * Returns the layer of a block position, measured as distance from the side of the cache facing the portal.
+	 */
+	public int layerOf(int x, int z) {
 		
-		if (!contains(blockPos)) {
-			return null;
+		if (facing.getX() == 1) {
+			return x - min.getX();
+		}
+		if (facing.getX() == -1) {
+			return max.getX() - 1 - x;
+		}
+		if (facing.getZ() == 1) {
+			return z - min.getZ();
+		} else {
+			return max.getZ() - 1 - z;
+		}
+	}
+	
+	/**
+	 * Walks all blocks of a layer in the memory order of the cache layout.
+	 */
+	public void forEachBlockInLayer(int layer, CacheLayout.BlockConsumer consumer) {
+		
+		int minX = min.getX();
+		int minY = min.getY();
+		int minZ = min.getZ();
+		int maxX = max.getX();
+		int maxY = max.getY();
+		int maxZ = max.getZ();
+		
+		if (facing.getX() != 0) {
+			int x = facing.getX() == 1 ? minX + layer : maxX - 1 - layer;
+			layout.forEachBlockIn(x, minY, minZ, x + 1, maxY, maxZ, consumer);
+		} else {
+			int z = facing.getZ() == 1 ? minZ + layer : maxZ - 1 - layer;
+			layout.forEachBlockIn(minX, minY, z, maxX, maxY, z + 1, consumer);
+		}
+	}
+	
+	/**
+	 * Returns the mirror sections around the blocks of a layer that are neither filled nor being filled.
+	 * They have to be filled before the layer is added.
+	 */
+	public List<MirrorSection> getSectionsToFill(int layer) {
+		
+		List<MirrorSection> sectionsToFill = new ArrayList<>();
+		
+		for (MirrorSection section : getSectionsAround(layer)) {
+			if (!section.isFilled() && !section.isFillPending()) {
+				sectionsToFill.add(section);
+			}
+		}
+		
+		return sectionsToFill;
+	}
+	
+	/**
+	 * Returns true if all mirror sections around the blocks of a layer are filled, so the layer can be added.
+	 */
+	public boolean areSectionsFilled(int layer) {
+		
+		for (MirrorSection section : getSectionsAround(layer)) {
+			if (!section.isFilled()) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	private List<MirrorSection> getSectionsAround(int layer) {
+		
+		int minX = min.getX() - 1;
+		int minZ = min.getZ() - 1;
+		int maxX = max.getX();
+		int maxZ = max.getZ();
+		
+		if (facing.getX() != 0) {
+			int x = facing.getX() == 1 ? min.getX() + layer : max.getX() - 1 - layer;
+			minX = x - 1;
+			maxX = x + 1;
+		} else {
+			int z = facing.getZ() == 1 ? min.getZ() + layer : max.getZ() - 1 - layer;
+			minZ = z - 1;
+			maxZ = z + 1;
+		}
+		
+		List<MirrorSection> sectionsAround = new ArrayList<>();
+		
+		for (int sectionX = minX >> 4; sectionX <= maxX >> 4; sectionX++) {
+			for (int sectionZ = minZ >> 4; sectionZ <= maxZ >> 4; sectionZ++) {
+				for (int sectionY = minSectionY; sectionY < minSectionY + sectionCountY; sectionY++) {
+					sectionsAround.add(sections[sectionIndexOf(sectionX << 4, sectionY << 4, sectionZ << 4)]);
+				}
+			}
+		}
+		
+		return sectionsAround;
+	}
+	
+	/**
+	 * Adds the next layer to the cache. Layers have to be added in order, starting with the one closest to the portal,
+	 * and the sections around them have to be filled. The visibility of blocks next to blocks that changed since the layer
+	 * was copied is checked again.
+	 *
+	 * @return all visible blocks of the layer
+	 */
+	public Map<BlockVec, BlockType> addLayer(CacheLayer cacheLayer) {
+		
+		if (cacheLayer.getLayer() != builtLayerCount) {
+			throw new IllegalStateException("Expected layer " + builtLayerCount + " but got layer " + cacheLayer.getLayer() + ".");
+		}
+		
+		Map<BlockVec, BlockType> visibleBlocks = new HashMap<>();
+		BitSet outdatedBlocks = getBlocksAroundChanges(cacheLayer.getLayer());
+		int[] blockIndex = {0};
+		
+		forEachBlockInLayer(cacheLayer.getLayer(), (index, x, y, z) -> {
+			
+			boolean isVisible = outdatedBlocks.get(index) ? hasOpenFace(x, y, z) : cacheLayer.isVisible(blockIndex[0]);
+			blockIndex[0]++;
+			
+			if (!isVisible) {
+				return;
+			}
+			
+			BlockType blockType = mirroredBlockTypeAt(x, y, z);
+			
+			if (blockType != null) {
+				this.visibleBlocks.set(index);
+				visibleBlocks.put(new BlockVec(x, y, z), blockType);
+			}
+		});
+		
+		builtLayerCount++;
+		persisted = false;
+		
+		if (isBuilt()) {
+			changesWhileBuilding.clear();
 		}
 		
-		return blockCopies
-				[blockPos.getX() - min.getX()]
-				[blockPos.getY() - min.getY()]
-				[blockPos.getZ() - min.getZ()];
+		return visibleBlocks;
 	}
 	
-	public void setBlockTypeAt(BlockVec blockPos, BlockType blockType) {
-		blockCopies
-				[blockPos.getX() - min.getX()]
-				[blockPos.getY() - min.getY()]
-				[blockPos.getZ() - min.getZ()] = blockType;
+	/**
+	 * Returns the indices of the blocks in a layer that are next to a block that changed while the cache was building.
+	 */
+	private BitSet getBlocksAroundChanges(int layer) {
+		
+		BitSet blocksAroundChanges = new BitSet();
+		
+		for (BlockVec changedBlock : changesWhileBuilding) {
+			for (int face = 0; face < 6; face++) {
+				
+				int neighbourX = changedBlock.getX() + FACE_DX[face];
+				int neighbourY = changedBlock.getY() + FACE_DY[face];
+				int neighbourZ = changedBlock.getZ() + FACE_DZ[face];
+				int neighbourIndex = layout.indexOf(neighbourX, neighbourY, neighbourZ);
+				
+				if (neighbourIndex >= 0 && layerOf(neighbourX, neighbourZ) == layer) {
+					blocksAroundChanges.set(neighbourIndex);
+				}
+			}
+		}
+		
+		return blocksAroundChanges;
 	}
 	
-	public void removeBlockDataAt(BlockVec blockPos) {
-		blockCopies
-				[blockPos.getX() - min.getX()]
-				[blockPos.getY() - min.getY()]
-				[blockPos.getZ() - min.getZ()] = null;
+	/**
+	 * Remembers a block that changed in a section that is not filled yet, so the visibility around it is checked again
+	 * when the layers next to it are added.
+	 */
+	public void addChangeWhileBuilding(BlockVec blockPos) {
+		
+		if (!isBuilt() && isAffectedBy(blockPos)) {
+			changesWhileBuilding.add(blockPos.clone());
+		}
 	}
 	
 	/**
-	 * Returns true if the block copy at the given position is listed as visible (when it's not null)
+	 * Sets the blocks listed as visible read from disk and marks all layers as built.
+	 * The mirror sections of the cache have to be filled.
+	 */
+	void restoreVisibleBlocks(long[] storedVisibleBlocks) {
+		
+		visibleBlocks = BitSet.valueOf(storedVisibleBlocks);
+		builtLayerCount = layerCount;
+		persisted = true;
+	}
+	
+	/**
+	 * Returns the bitset of the blocks listed as visible as array of longs.
+	 */
+	long[] getVisibleBlockWords() {
+		return visibleBlocks.toLongArray();
+	}
+	
+	long getChunkStamp() {
+		return chunkStamp;
+	}
+	
+	void setChunkStamp(long chunkStamp) {
+		this.chunkStamp = chunkStamp;
+	}
+	
+	/**
+	 * Returns true if the blocks did not change since they were written to or read from disk.
+	 */
+	boolean isPersisted() {
+		return persisted;
+	}
+	
+	void setPersisted(boolean persisted) {
+		this.persisted = persisted;
+	}
+	
+	public BlockType getBlockTypeAt(BlockVec blockPos) {
+		return getBlockTypeAt(blockPos.getX(), blockPos.getY(), blockPos.getZ());
+	}
+	
+	public BlockType getBlockTypeAt(int x, int y, int z) {
+		return getBlockTypeAt(layout.indexOf(x, y, z));
+	}
+	
+	/**
+	 * Returns the block type at the given layout index if the block is listed as visible, otherwise null.
+	 */
+	public BlockType getBlockTypeAt(int index) {
+		return index >= 0 && visibleBlocks.get(index) ? mirroredBlockTypeAt(layout.xOf(index), layout.yOf(index), layout.zOf(index)) : null;
+	}
+	
+	/**
+	 * Returns true if the block at the given position is listed as visible (not all of its neighbours are occluding).
 	 */
 	public boolean isBlockListedVisible(BlockVec blockPos) {
-		return getBlockTypeAt(blockPos) != null;
+		return isBlockListedVisible(layout.indexOf(blockPos));
+	}
+	
+	public boolean isBlockListedVisible(int index) {
+		return index >= 0 && visibleBlocks.get(index);
+	}
+	
+	/**
+	 * Returns the first index from the given one on of a block listed as visible, or -1 if there is none.
+	 */
+	int nextVisibleIndex(int fromIndex) {
+		return visibleBlocks.nextSetBit(fromIndex);
 	}
 	
 	/**
-	 * Returns true if the block copy at the given position is visible by checking the surrounding block copies for transparent ones
+	 * Returns the type of a block of the cache as it is shown, or null if its section is not filled yet.
 	 */
-	public boolean isBlockNowVisible(BlockVec blockPos) {
+	private BlockType mirroredBlockTypeAt(int x, int y, int z) {
 		
-		for (BlockVec facing : FacingUtils.getAxesBlockVecs()) {
+		MirrorSection section = sections[sectionIndexOf(x, y, z)];
+		
+		if (!section.isFilled()) {
+			return null;
+		}
+		
+		BlockType blockType = section.getBlockType(x, y, z);
+		
+		//make sure that the cache border only consists of occluding blocks
+		return !blockType.isOccluding() && isBorder(x, y, z) ? borderType : blockType;
+	}
+	
+	/**
+	 * Returns true if any neighbour of the block inside the cache is not occluding.
+	 * Neighbours in sections that are not filled yet count as occluding.
+	 */
+	private boolean hasOpenFace(int x, int y, int z) {
+		
+		for (int face = 0; face < 6; face++) {
 			
-			BlockVec touchingBlockPos = blockPos.clone().add(facing);
+			int neighbourX = x + FACE_DX[face];
+			int neighbourY = y + FACE_DY[face];
+			int neighbourZ = z + FACE_DZ[face];
 			
-			if (!contains(touchingBlockPos)) {
+			//border blocks inside the cache are always occluding, blocks outside of it are taken as they are
+			if (layout.contains(neighbourX, neighbourY, neighbourZ) && isBorder(neighbourX, neighbourY, neighbourZ)) {
 				continue;
 			}
 			
-			BlockType touchingBlock = getBlockTypeAt(touchingBlockPos);
+			MirrorSection section = sections[sectionIndexOf(neighbourX, neighbourY, neighbourZ)];
 			
-			if (touchingBlock != null && !touchingBlock.isOccluding()) {
+			if (section.isFilled() && !section.getBlockType(neighbourX, neighbourY, neighbourZ).isOccluding()) {
 				return true;
 			}
 		}
 		
-		//TODO check if block is directly in front of the portal.
 		return false;
 	}
+	
+	/**
+	 * Updates the cache after a block inside of it or right next to it changed in the mirror.
+	 * If the occlusion of the block changed, the visibility of its neighbours is updated.
+	 *
+	 * @return all visible blocks that were affected and updated in the process.
+	 */
+	public Map<BlockVec, BlockType> updateBlockType(BlockVec blockPos, BlockType oldBlockType, BlockType newBlockType) {
+		
+		Map<BlockVec, BlockType> changedBlocks = new HashMap<>();
+		
+		if (!isAffectedBy(blockPos)) {
+			return changedBlocks;
+		}
+		
+		int x = blockPos.getX();
+		int y = blockPos.getY();
+		int z = blockPos.getZ();
+		int index = layout.indexOf(x, y, z);
+		
+		//non occluding blocks in the border are replaced with the border block type, so they always occlude their neighbours
+		boolean isBorder = index >= 0 && isBorder(x, y, z);
+		persisted = false;
+		
+		if (!isBorder && oldBlockType.isOccluding() != newBlockType.isOccluding()) {
+			
+			for (int face = 0; face < 6; face++) {
+				
+				int neighbourX = x + FACE_DX[face];
+				int neighbourY = y + FACE_DY[face];
+				int neighbourZ = z + FACE_DZ[face];
+				int neighbourIndex = layout.indexOf(neighbourX, neighbourY, neighbourZ);
+				
+				if (neighbourIndex < 0) {
+					continue;
+				}
+				
+				//the copied visibility of layers that are not built yet is checked again when they are added
+				if (layerOf(neighbourX, neighbourZ) >= builtLayerCount) {
+					changesWhileBuilding.add(blockPos.clone());
+					continue;
+				}
+				
+				boolean wasVisible = visibleBlocks.get(neighbourIndex);
+				
+				if (wasVisible == hasOpenFace(neighbourX, neighbourY, neighbourZ)) {
+					continue;
+				}
+				
+				visibleBlocks.set(neighbourIndex, !wasVisible);
+				
+				//hidden blocks don't need to be updated in the projections, only revealed ones
+				if (!wasVisible) {
+					changedBlocks.put(new BlockVec(neighbourX, neighbourY, neighbourZ), mirroredBlockTypeAt(neighbourX, neighbourY, neighbourZ));
+				}
+			}
+		}
+		
+		//a non occluding border block replaced by another one still looks like the border
+		boolean lookChanged = !isBorder || oldBlockType.isOccluding() || newBlockType.isOccluding();
+		
+		if (index >= 0 && lookChanged && visibleBlocks.get(index) && layerOf(x, z) < builtLayerCount) {
+			changedBlocks.put(blockPos.clone(), mirroredBlockTypeAt(x, y, z));
+		}
+		
+		return changedBlocks;
+	}
 }
@@ -1,24 +1,52 @@
 package me.gorgeousone.netherview.blockcache;
 
-import me.gorgeousone.netherview.FacingUtils;
 import me.gorgeousone.netherview.blocktype.BlockType;
 import me.gorgeousone.netherview.portal.Portal;
 import me.gorgeousone.netherview.threedstuff.AxisAlignedRect;
 import me.gorgeousone.netherview.threedstuff.BlockVec;
-import org.bukkit.Location;
-import org.bukkit.World;
-import org.bukkit.block.Block;
-import org.bukkit.block.BlockFace;
+import org.bukkit.Chunk;
 import org.bukkit.util.Vector;
 
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 public class BlockCacheFactory {
 	
+	/**
+	 * Loads all chunks needed to create the block caches of a portal.
+	 * Has to be called on the main thread, the returned future is completed on the main thread as well.
+	 */
+	public static CompletableFuture<List<Chunk>> loadChunksAround(Portal portal, int viewDist) {
+		
+		CacheBounds[] bounds = calculateCacheBounds(portal, viewDist);
+		
+		//the blocks around the caches are needed to find out which blocks of the caches are visible
+		BlockVec regionMin = BlockVec.getMinimum(bounds[0].min(), bounds[1].min()).add(-1, -1, -1);
+		BlockVec regionMax = BlockVec.getMaximum(bounds[0].max(), bounds[1].max()).add(1, 1, 1);
+		return ChunkSnapshotRegion.loadChunks(portal.getWorld(), regionMin, regionMax);
+	}
+	
+	/**
+	 * Creates the empty front and back block cache of a portal as views of the mirror of the portal's world.
+	 * Their layers can be copied with {@link #copyLayer}.
+	 */
 	public static BlockCachePair createBlockCaches(Portal portal,
 	                                               int viewDist,
-	                                               BlockType cacheBorderBlockType) {
+	                                               BlockType cacheBorderBlockType,
+	                                               WorldMirror mirror) {
+		
+		CacheBounds[] bounds = calculateCacheBounds(portal, viewDist);
+		
+		BlockCache front = createEmptyCache(portal, bounds[0], cacheBorderBlockType, mirror);
+		BlockCache back = createEmptyCache(portal, bounds[1], cacheBorderBlockType, mirror);
+		return new BlockCachePair(front, back);
+	}
+	
+	/**
+	 * Returns the bounds of the front and the back cache of a portal.
+	 */
+	private static CacheBounds[] calculateCacheBounds(Portal portal, int viewDist) {
 		
 		//theoretically the view distance needs to be increased by 1 for the extra layer of border around the cuboid of blocks.
 		//but somehow it's 2. Don't ask me.
@@ -41,202 +69,87 @@ public class BlockCacheFactory {
 		cacheCorner2.add(new Vector(0, verticalViewDist, 0));
 		cacheCorner2.add(widthFacing.clone().multiply(horizontalViewDist));
 		
-		//TODO pass parameters more efficient?
-		BlockCache front = copyBlocksInBounds(
-				portal,
+		CacheBounds front = CacheBounds.of(
 				cacheCorner1.clone().add(portalFacing),
 				cacheCorner2.clone().add(portalFacing.clone().multiply(frontViewDist)),
-				portalFacing,
-				cacheBorderBlockType);
+				portalFacing);
 		
-		BlockCache back = copyBlocksInBounds(
-				portal,
+		CacheBounds back = CacheBounds.of(
 				cacheCorner1.clone().subtract(portalFacing.clone().multiply(frontViewDist - 1)),
 				cacheCorner2,
-				portalFacing.clone().multiply(-1),
-				cacheBorderBlockType);
+				portalFacing.clone().multiply(-1));
 		
-		return new BlockCachePair(front, back);
+		return new CacheBounds[] {front, back};
 	}
 	
-	//TODO rather copy the blocs into an empty BlockCache?
-	private static BlockCache copyBlocksInBounds(Portal portal,
-	                                             Vector cacheCorner1,
-	                                             Vector cacheCorner2,
-	                                             Vector cacheFacing,
-	                                             BlockType cacheBorderBlockType) {
-		
-		Vector cacheMin = Vector.getMinimum(cacheCorner1, cacheCorner2);
-		Vector cacheMax = Vector.getMaximum(cacheCorner1, cacheCorner2);
-		
-		int minX = cacheMin.getBlockX();
-		int minY = cacheMin.getBlockY();
-		int minZ = cacheMin.getBlockZ();
-		int maxX = cacheMax.getBlockX();
-		int maxY = cacheMax.getBlockY();
-		int maxZ = cacheMax.getBlockZ();
-		
-		if (maxX < minX || maxY < minY || maxZ < minZ) {
-			throw new IllegalArgumentException("Cannot create a BlockCache smaller than 1 block.");
-		}
+	private static BlockCache createEmptyCache(Portal portal, CacheBounds bounds, BlockType cacheBorderBlockType, WorldMirror mirror) {
 		
-		BlockType[][][] copiedBlocks = new BlockType[maxX - minX][maxY - minY][maxZ - minZ];
-		World cacheWorld = portal.getWorld();
-		
-		for (int x = minX; x < maxX; x++) {
-			for (int y = minY; y < maxY; y++) {
-				for (int z = minZ; z < maxZ; z++) {
-					
-					Block block = new Location(cacheWorld, x, y, z).getBlock();
-					
-					if (!isVisible(block)) {
-						continue;
-					}
-					
-					BlockType blockType = BlockType.of(block);
-					
-					//make sure that the cache border onl consists of occluding blocks
-					if (!blockType.isOccluding() && isCacheBorder(x, y, z, minX, minY, minZ, maxX, maxY, maxZ, cacheFacing)) {
-						blockType = cacheBorderBlockType.clone();
-					}
-					
-					copiedBlocks[x - minX][y - minY][z - minZ] = blockType;
-				}
-			}
+		BlockVec min = bounds.min();
+		BlockVec max = bounds.max();
+		
+		if (max.getX() < min.getX() || max.getY() < min.getY() || max.getZ() < min.getZ()) {
+			throw new IllegalArgumentException("Cannot create a BlockCache smaller than 1 block.");
 		}
 		
-		return new BlockCache(portal, new BlockVec(cacheMin), copiedBlocks, cacheFacing, cacheBorderBlockType);
+		CacheLayout layout = new CacheLayout(min, max.getX() - min.getX(), max.getY() - min.getY(), max.getZ() - min.getZ());
+		return new BlockCache(portal, layout, bounds.facing(), cacheBorderBlockType, mirror);
 	}
 	
 	/**
-	 * Updates a block that changed it's appearance in a block cache, if it's not part of the cache border.
-	 *
-	 * @return all block copies that were affected and updated in the process.
+	 * Finds the visible blocks of one layer of a block cache in the captured chunks. Does not access the world or modify the cache,
+	 * so it can be called from any thread.
 	 */
-	public static Map<BlockVec, BlockType> updateBlockInCache(
-			BlockCache cache,
-			Block changedBlock,
-			BlockType newBlockType,
-			boolean blockWasOccluding) {
-		
-		
-		BlockVec blockPos = new BlockVec(changedBlock);
-		Map<BlockVec, BlockType> changedBlocks = new HashMap<>();
-		
-		//any new transparent block in the cache border will be replaced with the border block type (of course)
-		if (!newBlockType.isOccluding() && cache.isBorder(blockPos)) {
-			newBlockType = cache.getBorderBlockType();
-		}
-		
-		//if the block did not change it's occlusion then only the block itself needs to be updated
-		if (blockWasOccluding == newBlockType.isOccluding()) {
-			
-			//return no cache updates when the block is hidden as border anyway
-			if (!blockWasOccluding && cache.isBorder(blockPos)) {
-				return changedBlocks;
-			}
-			
-			cache.setBlockTypeAt(blockPos, newBlockType);
-			changedBlocks.put(blockPos, newBlockType);
-			return changedBlocks;
-		}
+	public static CacheLayer copyLayer(BlockCache cache, int layer, ChunkSnapshotRegion blocks) {
 		
-		World cacheWorld = cache.getWorld();
+		CacheLayout layout = cache.getLayout();
+		CacheLayer cacheLayer = new CacheLayer(layer, layout.getVolume() / cache.getLayerCount());
 		
-		//hide other block copies that are now covered by this occluding block
-		//but they don't need to be updated in the projections
-		if (newBlockType.isOccluding()) {
-			
-			for (BlockVec facing : FacingUtils.getAxesBlockVecs()) {
-				
-				BlockVec touchingBlockPos = blockPos.clone().add(facing);
-				
-				if (cache.contains(touchingBlockPos) && !cache.isBlockNowVisible(touchingBlockPos)) {
-					cache.removeBlockDataAt(touchingBlockPos);
-				}
-			}
+		cache.forEachBlockInLayer(layer, (index, x, y, z) -> {
 			
-			//re-add fake blocks that are revealed by the new transparent block
-		} else {
+			boolean hasOpenFace = false;
 			
-			for (BlockVec facing : FacingUtils.getAxesBlockVecs()) {
+			for (int face = 0; face < 6; face++) {
 				
-				BlockVec touchingBlockPos = blockPos.clone().add(facing);
+				int neighbourX = x + BlockCache.FACE_DX[face];
+				int neighbourY = y + BlockCache.FACE_DY[face];
+				int neighbourZ = z + BlockCache.FACE_DZ[face];
 				
-				if (!cache.contains(touchingBlockPos) || cache.isBlockListedVisible(touchingBlockPos)) {
+				//border blocks inside the cache are always occluding, blocks outside of it are taken as they are
+				if (layout.contains(neighbourX, neighbourY, neighbourZ) && cache.isBorder(neighbourX, neighbourY, neighbourZ)) {
 					continue;
 				}
 				
-				BlockType touchingBlockType = BlockType.of(cacheWorld.getBlockAt(
-						touchingBlockPos.getX(),
-						touchingBlockPos.getY(),
-						touchingBlockPos.getZ()));
-				
-				if (!touchingBlockType.isOccluding() && cache.isBorder(touchingBlockPos)) {
-					touchingBlockType = cache.getBorderBlockType();
+				if (!blocks.getType(neighbourX, neighbourY, neighbourZ).isOccluding()) {
+					hasOpenFace = true;
+					break;
 				}
-				
-				cache.setBlockTypeAt(touchingBlockPos, touchingBlockType);
-				changedBlocks.put(touchingBlockPos, touchingBlockType);
 			}
-		}
+			
+			cacheLayer.add(hasOpenFace);
+		});
 		
-		changedBlocks.put(blockPos, newBlockType);
-		return changedBlocks;
+		return cacheLayer;
 	}
-
-		private static boolean isCacheBorder(BlockVec blockPos, BlockCache cache) {
-
-			BlockVec cacheMin = cache.getMin();
-			BlockVec cacheMax = cache.getMax();
-
-			return isCacheBorder(
-					blockPos.getX(), blockPos.getY(), blockPos.getZ(),
-					cacheMin.getX(), cacheMin.getY(), cacheMin.getZ(),
-					cacheMax.getX(), cacheMax.getY(), cacheMax.getZ(),
-					cache.getFacing());
-		}
 	
 	/**
-	 * Returns true if the block is part of the border of the cache cuboid except the side where the portal is
+	 * Updates a block cache after a block in or next to it changed it's appearance in the world mirror.
+	 *
+	 * @return all visible blocks that were affected and updated in the process.
 	 */
-	private static boolean isCacheBorder(
-			int x, int y, int z,
-			int minX, int minY, int minZ,
-			int maxX, int maxY, int maxZ,
-			Vector cacheFacing) {
-		
-		if (y == minY || y == maxY - 1) {
-			return true;
-		}
-		
-		if (cacheFacing.getZ() != 0) {
-			if (x == minX || x == maxX - 1) {
-				return true;
-			}
-		} else if (z == minZ || z == maxZ - 1) {
-			return true;
-		}
-		
-		if (cacheFacing.getX() == 1) {
-			return x == maxX - 1;
-		} else if (cacheFacing.getX() == -1) {
-			return x == minX;
-		} else if (cacheFacing.getZ() == 1) {
-			return z == maxZ - 1;
-		} else {
-			return z == minZ;
-		}
+	public static Map<BlockVec, BlockType> updateBlockInCache(BlockCache cache, BlockVec changedBlock, BlockType oldBlockType, BlockType newBlockType) {
+		return cache.updateBlockType(changedBlock, oldBlockType, newBlockType);
 	}
 	
-	public static boolean isVisible(Block block) {
+	/**
+	 * Block bounds of a cache with an exclusive max.
+	 */
+	private record CacheBounds(BlockVec min, BlockVec max, Vector facing) {
 		
-		for (BlockFace face : FacingUtils.getAxesFaces()) {
-			if (!block.getRelative(face).getType().isOccluding()) {
-				return true;
-			}
+		private static CacheBounds of(Vector corner1, Vector corner2, Vector facing) {
+			return new CacheBounds(
+					new BlockVec(Vector.getMinimum(corner1, corner2)),
+					new BlockVec(Vector.getMaximum(corner1, corner2)),
+					facing);
 		}
-		
-		return false;
 	}
 }
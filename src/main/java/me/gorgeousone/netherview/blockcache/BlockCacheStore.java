@@ -0,0 +1,439 @@
+package me.gorgeousone.netherview.blockcache;
+
+import me.gorgeousone.netherview.blocktype.BlockType;
+import me.gorgeousone.netherview.portal.Portal;
+import me.gorgeousone.netherview.threedstuff.BlockVec;
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Stores the blocks of block caches in a compact binary format on disk, so they don't have to be copied from the world again
+ * after a restart. Each cache file contains the layout of the cache, the bitset of its visible blocks and the palette and
+ * packed palette indices of each mirror section around the cache. Palette entries are stored as block data strings.
+ * Files are read and decoded off the main thread, only filling the sections of the cache happens on it.
+ * A cache is only restored if none of its sections are mirrored yet, otherwise it is built from the world.
+ * <p>
+ * A file is only valid as long as the chunk stamp of the cache matches. The stamp is calculated from the inhabited time of the
+ * chunks around the cache, which only increases while players are close enough to change blocks there.
+ * This is only a heuristic: changes made without a player nearby, e.g. by WorldEdit, other plugins or the console,
+ * or in chunks that are loaded but not ticked, do not change the stamp and leave outdated files valid.
+ */
+public class BlockCacheStore {
+	
+	private static final int MAGIC = 0x4E56_4243;
+	private static final int FORMAT_VERSION = 2;
+	
+	private final File directory;
+	private final Function<String, BlockType> blockTypeParser;
+	
+	public BlockCacheStore(File directory) {
+		this(directory, serialized -> BlockType.of(Bukkit.createBlockData(serialized)));
+	}
+	
+	/**
+	 * @param blockTypeParser creates block types from the strings the palette entries were stored as
+	 */
+	public BlockCacheStore(File directory, Function<String, BlockType> blockTypeParser) {
+		this.directory = directory;
+		this.blockTypeParser = blockTypeParser;
+	}
+	
+	/**
+	 * Returns the current chunk stamp of the chunks around a cache or null if any of them is not loaded.
+	 * Has to be called on the main thread.
+	 */
+	public Long getChunkStamp(BlockCache cache) {
+		return calculateChunkStamp(cache);
+	}
+	
+	/**
+	 * Reads and decodes the stored blocks of a cache if there is a file for it with the passed chunk stamp.
+	 * Does not access the world or the mirror sections, so it can be called from any thread.
+	 *
+	 * @return the stored blocks or null if there are no valid ones
+	 */
+	public StoredBlocks read(BlockCache cache, boolean isFrontCache, long chunkStamp) throws IOException {
+		
+		File cacheFile = getCacheFile(cache.getPortal(), isFrontCache);
+		
+		if (!cacheFile.isFile()) {
+			return null;
+		}
+		
+		try {
+			return readCache(readFile(cacheFile), chunkStamp, cache.getLayout(), cache.getBorderBlockType(), cache.getSections().length, blockTypeParser);
+			
+		} catch (RuntimeException e) {
+			throw new IOException("Invalid cache file " + cacheFile.getName(), e);
+		}
+	}
+	
+	/**
+	 * Fills the mirror sections of the empty block cache with the blocks read for it. Has to be called on the main thread
+	 * while the chunks of the cache are loaded.
+	 * <p>
+	 * The blocks are only restored if the chunk stamp did not change since they were read. They are also not restored if
+	 * any section of the cache is mirrored already or being copied from the world by another cache, because the stored
+	 * visibility of the blocks might not match the blocks of that section.
+	 *
+	 * @param storedBlocks the blocks read with {@link #read(BlockCache, boolean, long)} or null if there were none
+	 * @param chunkStamp   the chunk stamp the blocks were read for or null if they were not read
+	 * @return true if the cache was restored, false if it has to be built from the world
+	 */
+	public boolean restore(BlockCache cache, StoredBlocks storedBlocks, Long chunkStamp) {
+		
+		Long currentStamp = calculateChunkStamp(cache);
+		
+		if (currentStamp == null) {
+			return false;
+		}
+		
+		cache.setChunkStamp(currentStamp);
+		
+		if (storedBlocks == null || !currentStamp.equals(chunkStamp)) {
+			return false;
+		}
+		
+		MirrorSection[] sections = cache.getSections();
+		
+		for (MirrorSection section : sections) {
+			if (section.isFilled() || section.isFillPending()) {
+				return false;
+			}
+		}
+		
+		for (int i = 0; i < sections.length; i++) {
+			sections[i].fill(storedBlocks.sections()[i]);
+		}
+		
+		cache.restoreVisibleBlocks(storedBlocks.visibleBlocks());
+		return true;
+	}
+	
+	/**
+	 * Writes the blocks of a completely built cache to disk, if they changed since they were last written or read.
+	 * Has to be called on the main thread.
+	 */
+	public void save(BlockCache cache, boolean isFrontCache) throws IOException {
+		
+		CacheSnapshot snapshot = takeSnapshot(cache, isFrontCache, false);
+		
+		if (snapshot != null) {
+			write(snapshot);
+			cache.setChunkStamp(snapshot.chunkStamp());
+			cache.setPersisted(true);
+		}
+	}
+	
+	/**
+	 * Collects the blocks of a dropped cache to write them to disk with {@link #write(CacheSnapshot)} on any thread.
+	 * Sections still used by other caches are copied, because they are updated on the main thread in the meantime.
+	 * Has to be called on the main thread after the cache was released.
+	 *
+	 * @return the blocks to write or null if the cache does not need to be stored
+	 */
+	public CacheSnapshot takeSnapshot(BlockCache cache, boolean isFrontCache) {
+		return takeSnapshot(cache, isFrontCache, true);
+	}
+	
+	private CacheSnapshot takeSnapshot(BlockCache cache, boolean isFrontCache, boolean copyUsedSections) {
+		
+		if (!cache.isBuilt() || cache.isPersisted()) {
+			return null;
+		}
+		
+		//the stamp can only be updated if all chunks are loaded, otherwise the stamp from when the blocks were copied is kept
+		Long currentStamp = calculateChunkStamp(cache);
+		long chunkStamp = currentStamp != null ? currentStamp : cache.getChunkStamp();
+		
+		MirrorSection[] sections = cache.getSections();
+		PalettedBlockStorage[] sectionBlocks = new PalettedBlockStorage[sections.length];
+		
+		for (int i = 0; i < sections.length; i++) {
+			
+			MirrorSection section = sections[i];
+			
+			//a section might have failed to copy
+			if (!section.isFilled()) {
+				return null;
+			}
+			
+			sectionBlocks[i] = copyUsedSections && section.getReferences() > 0 ? section.getBlocks().copy() : section.getBlocks();
+		}
+		
+		return new CacheSnapshot(getCacheFile(cache.getPortal(), isFrontCache),
+				chunkStamp,
+				cache.getLayout(),
+				cache.getBorderBlockType(),
+				cache.getVisibleBlockWords(),
+				sectionBlocks);
+	}
+	
+	/**
+	 * Encodes the collected blocks of a cache and writes them to its file. Can be called from any thread.
+	 */
+	public void write(CacheSnapshot snapshot) throws IOException {
+		
+		ByteBuffer buffer = writeCache(snapshot.chunkStamp(), snapshot.layout(), snapshot.borderType(), snapshot.visibleBlocks(), snapshot.sections());
+		
+		File cacheFile = snapshot.file();
+		File tempFile = new File(cacheFile.getPath() + ".tmp");
+		Files.createDirectories(cacheFile.getParentFile().toPath());
+		
+		//write to a temporary file first, so a crash does not leave a half written cache file behind
+		try (FileChannel channel = FileChannel.open(tempFile.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		}
+		
+		Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	/**
+	 * Deletes the stored caches of a portal.
+	 */
+	public void delete(Portal portal) throws IOException {
+		Files.deleteIfExists(getCacheFile(portal, true).toPath());
+		Files.deleteIfExists(getCacheFile(portal, false).toPath());
+	}
+	
+	private File getCacheFile(Portal portal, boolean isFrontCache) {
+		
+		BlockVec portalLoc = new BlockVec(portal.getLocation());
+		String fileName = portalLoc.getX() + "_" + portalLoc.getY() + "_" + portalLoc.getZ() + (isFrontCache ? "_front" : "_back") + ".bin";
+		return new File(new File(directory, portal.getWorld().getUID().toString()), fileName);
+	}
+	
+	/**
+	 * Combines the inhabited times of all chunks touched by the cache and its surrounding blocks.
+	 * Returns null if any of the chunks is not loaded.
+	 */
+	private static Long calculateChunkStamp(BlockCache cache) {
+		
+		World world = cache.getWorld();
+		BlockVec min = cache.getMin();
+		BlockVec max = cache.getMax();
+		long stamp = 1;
+		
+		for (int chunkX = (min.getX() - 1) >> 4; chunkX <= max.getX() >> 4; chunkX++) {
+			for (int chunkZ = (min.getZ() - 1) >> 4; chunkZ <= max.getZ() >> 4; chunkZ++) {
+				
+				if (!world.isChunkLoaded(chunkX, chunkZ)) {
+					return null;
+				}
+				
+				stamp = 31 * stamp + world.getChunkAt(chunkX, chunkZ).getInhabitedTime();
+			}
+		}
+		
+		return stamp;
+	}
+	
+	/**
+	 * Encodes the blocks of a cache in the file format of the store.
+	 */
+	public static ByteBuffer writeCache(long chunkStamp, CacheLayout layout, BlockType borderType, long[] visibleBlocks, PalettedBlockStorage[] sections) {
+		
+		List<byte[]> sectionPalettes = new ArrayList<>();
+		int sectionBytes = 0;
+		
+		for (PalettedBlockStorage blocks : sections) {
+			
+			sectionBytes += 3 * Integer.BYTES + blocks.getData().length * Long.BYTES;
+			
+			for (int i = 1; i <= blocks.getPaletteSize(); i++) {
+				
+				byte[] entry = blocks.getPaletteEntry(i).toString().getBytes(StandardCharsets.UTF_8);
+				sectionPalettes.add(entry);
+				sectionBytes += Integer.BYTES + entry.length;
+			}
+		}
+		
+		BlockVec min = layout.getMin();
+		byte[] borderTypeBytes = borderType.toString().getBytes(StandardCharsets.UTF_8);
+		
+		ByteBuffer buffer = ByteBuffer.allocate(
+				2 * Integer.BYTES + Long.BYTES + 6 * Integer.BYTES +
+				Integer.BYTES + borderTypeBytes.length +
+				Integer.BYTES + visibleBlocks.length * Long.BYTES +
+				Integer.BYTES + sectionBytes);
+		
+		buffer.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(chunkStamp);
+		buffer.putInt(min.getX()).putInt(min.getY()).putInt(min.getZ());
+		buffer.putInt(layout.getSizeX()).putInt(layout.getSizeY()).putInt(layout.getSizeZ());
+		buffer.putInt(borderTypeBytes.length).put(borderTypeBytes);
+		
+		buffer.putInt(visibleBlocks.length);
+		buffer.asLongBuffer().put(visibleBlocks);
+		buffer.position(buffer.position() + visibleBlocks.length * Long.BYTES);
+		buffer.putInt(sections.length);
+		
+		Iterator<byte[]> paletteEntries = sectionPalettes.iterator();
+		
+		for (PalettedBlockStorage blocks : sections) {
+			
+			long[] data = blocks.getData();
+			buffer.putInt(blocks.getPaletteSize());
+			
+			for (int i = 0; i < blocks.getPaletteSize(); i++) {
+				byte[] entry = paletteEntries.next();
+				buffer.putInt(entry.length).put(entry);
+			}
+			
+			buffer.putInt(blocks.getBitsShift()).putInt(data.length);
+			buffer.asLongBuffer().put(data);
+			buffer.position(buffer.position() + data.length * Long.BYTES);
+		}
+		
+		return buffer.flip();
+	}
+	
+	/**
+	 * Decodes the blocks of a cache from the file format of the store.
+	 *
+	 * @return the stored blocks or null if they were stored for another chunk stamp, layout, border block type or count of sections
+	 * @throws IOException if the data is broken
+	 */
+	public static StoredBlocks readCache(ByteBuffer buffer,
+	                                     long chunkStamp,
+	                                     CacheLayout layout,
+	                                     BlockType borderType,
+	                                     int sectionCount,
+	                                     Function<String, BlockType> blockTypeParser) throws IOException {
+		
+		if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION || buffer.getLong() != chunkStamp) {
+			return null;
+		}
+		
+		BlockVec min = layout.getMin();
+		
+		if (buffer.getInt() != min.getX() || buffer.getInt() != min.getY() || buffer.getInt() != min.getZ() ||
+		    buffer.getInt() != layout.getSizeX() || buffer.getInt() != layout.getSizeY() || buffer.getInt() != layout.getSizeZ()) {
+			return null;
+		}
+		
+		//the border block type might have been changed in the config
+		if (!readString(buffer).equals(borderType.toString())) {
+			return null;
+		}
+		
+		long[] visibleBlocks = readLongs(buffer);
+		
+		if (buffer.getInt() != sectionCount) {
+			return null;
+		}
+		
+		//read all sections before filling any, so a broken file does not leave half filled sections behind
+		PalettedBlockStorage[] sections = new PalettedBlockStorage[sectionCount];
+		
+		for (int i = 0; i < sectionCount; i++) {
+			sections[i] = readSection(buffer, blockTypeParser);
+		}
+		
+		return new StoredBlocks(visibleBlocks, sections);
+	}
+	
+	/**
+	 * Reads a whole file into a heap buffer. The file is not memory mapped, because a mapping would keep it locked on some systems
+	 * until the buffer is garbage collected, so it could not be replaced or deleted.
+	 */
+	private static ByteBuffer readFile(File file) throws IOException {
+		
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			
+			long size = channel.size();
+			
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("Cache file " + file.getName() + " is too large.");
+			}
+			
+			ByteBuffer buffer = ByteBuffer.allocate((int) size);
+			
+			while (buffer.hasRemaining()) {
+				
+				if (channel.read(buffer) < 0) {
+					throw new IOException("Unexpected end of cache file " + file.getName() + ".");
+				}
+			}
+			
+			return buffer.flip();
+		}
+	}
+	
+	private static PalettedBlockStorage readSection(ByteBuffer buffer, Function<String, BlockType> blockTypeParser) throws IOException {
+		
+		//each palette entry takes at least the bytes of its length
+		int paletteSize = readLength(buffer, Integer.BYTES);
+		List<BlockType> palette = new ArrayList<>(paletteSize);
+		
+		for (int i = 0; i < paletteSize; i++) {
+			palette.add(blockTypeParser.apply(readString(buffer)));
+		}
+		
+		int bitsShift = buffer.getInt();
+		long[] data = readLongs(buffer);
+		
+		return new PalettedBlockStorage(MirrorSection.VOLUME, palette, bitsShift, data);
+	}
+	
+	private static long[] readLongs(ByteBuffer buffer) throws IOException {
+		
+		long[] longs = new long[readLength(buffer, Long.BYTES)];
+		buffer.asLongBuffer().get(longs);
+		buffer.position(buffer.position() + longs.length * Long.BYTES);
+		return longs;
+	}
+	
+	private static String readString(ByteBuffer buffer) throws IOException {
+		
+		byte[] bytes = new byte[readLength(buffer, 1)];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Reads the length of an array and checks that the buffer holds enough bytes for it, so a broken file cannot make
+	 * huge arrays be allocated.
+	 */
+	private static int readLength(ByteBuffer buffer, int bytesPerElement) throws IOException {
+		
+		int length = buffer.getInt();
+		
+		if (length < 0 || (long) length * bytesPerElement > buffer.remaining()) {
+			throw new IOException("Invalid length " + length + " at byte " + (buffer.position() - Integer.BYTES) + ".");
+		}
+		
+		return length;
+	}
+	
+	/**
+	 * The visible blocks and mirror sections of a cache read from disk.
+	 */
+	public record StoredBlocks(long[] visibleBlocks, PalettedBlockStorage[] sections) {}
+	
+	/**
+	 * The blocks of a cache collected to be written to its file.
+	 */
+	public record CacheSnapshot(File file,
+	                            long chunkStamp,
+	                            CacheLayout layout,
+	                            BlockType borderType,
+	                            long[] visibleBlocks,
+	                            PalettedBlockStorage[] sections) {}
+}
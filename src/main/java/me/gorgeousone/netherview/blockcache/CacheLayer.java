@@ -0,0 +1,33 @@
+package me.gorgeousone.netherview.blockcache;
+
+import java.util.BitSet;
+
+/**
+ * The visibility of the blocks of one layer of a block cache, ready to be added to it.
+ * The blocks are stored in the order of {@link BlockCache#forEachBlockInLayer(int, CacheLayout.BlockConsumer)}.
+ */
+public class CacheLayer {
+	
+	private final int layer;
+	private final BitSet visibleBlocks;
+	private int size;
+	
+	public CacheLayer(int layer, int capacity) {
+		
+		this.layer = layer;
+		this.visibleBlocks = new BitSet(capacity);
+	}
+	
+	public int getLayer() {
+		return layer;
+	}
+	
+	public boolean isVisible(int i) {
+		return visibleBlocks.get(i);
+	}
+	
+	void add(boolean isVisible) {
+		visibleBlocks.set(size, isVisible);
+		size++;
+	}
+}
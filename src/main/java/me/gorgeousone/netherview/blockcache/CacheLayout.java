@@ -0,0 +1,176 @@
+package me.gorgeousone.netherview.blockcache;
+
+import me.gorgeousone.netherview.threedstuff.BlockVec;
+
+/**
+ * Maps the block positions of a cuboid to linear indices of a flat array and back.
+ * Y is the innermost dimension (block columns are contiguous), followed by z and then x.
+ * So one x slab (all blocks with the same x) is one contiguous range of indices.
+ */
+public final class CacheLayout {
+	
+	private final int minX;
+	private final int minY;
+	private final int minZ;
+	
+	private final int sizeX;
+	private final int sizeY;
+	private final int sizeZ;
+	
+	private final int strideX;
+	
+	public CacheLayout(BlockVec min, int sizeX, int sizeY, int sizeZ) {
+		
+		if (sizeX < 1 || sizeY < 1 || sizeZ < 1) {
+			throw new IllegalArgumentException("Cannot create a cache layout smaller than 1 block.");
+		}
+		
+		this.minX = min.getX();
+		this.minY = min.getY();
+		this.minZ = min.getZ();
+		
+		this.sizeX = sizeX;
+		this.sizeY = sizeY;
+		this.sizeZ = sizeZ;
+		
+		this.strideX = sizeZ * sizeY;
+	}
+	
+	public BlockVec getMin() {
+		return new BlockVec(minX, minY, minZ);
+	}
+	
+	/**
+	 * Returns the exclusive max of the layout.
+	 */
+	public BlockVec getMax() {
+		return new BlockVec(minX + sizeX, minY + sizeY, minZ + sizeZ);
+	}
+	
+	public int getMinX() {
+		return minX;
+	}
+	
+	public int getMinY() {
+		return minY;
+	}
+	
+	public int getMinZ() {
+		return minZ;
+	}
+	
+	public int getSizeX() {
+		return sizeX;
+	}
+	
+	public int getSizeY() {
+		return sizeY;
+	}
+	
+	public int getSizeZ() {
+		return sizeZ;
+	}
+	
+	public int getVolume() {
+		return strideX * sizeX;
+	}
+	
+	/**
+	 * Returns the distance between the indices of two neighbouring blocks on the x axis.
+	 */
+	public int getStrideX() {
+		return strideX;
+	}
+	
+	/**
+	 * Returns the distance between the indices of two neighbouring blocks on the z axis.
+	 */
+	public int getStrideZ() {
+		return sizeY;
+	}
+	
+	public boolean contains(int x, int y, int z) {
+		return indexOf(x, y, z) >= 0;
+	}
+	
+	public boolean contains(BlockVec blockPos) {
+		return indexOf(blockPos.getX(), blockPos.getY(), blockPos.getZ()) >= 0;
+	}
+	
+	/**
+	 * Returns the index of the block position or -1 if the position is not inside the layout.
+	 */
+	public int indexOf(int x, int y, int z) {
+		
+		int dx = x - minX;
+		int dy = y - minY;
+		int dz = z - minZ;
+		
+		//any negative value means the position is out of bounds
+		if ((dx | dy | dz | sizeX - 1 - dx | sizeY - 1 - dy | sizeZ - 1 - dz) < 0) {
+			return -1;
+		}
+		
+		return dx * strideX + dz * sizeY + dy;
+	}
+	
+	public int indexOf(BlockVec blockPos) {
+		return indexOf(blockPos.getX(), blockPos.getY(), blockPos.getZ());
+	}
+	
+	public int xOf(int index) {
+		return minX + index / strideX;
+	}
+	
+	public int yOf(int index) {
+		return minY + index % sizeY;
+	}
+	
+	public int zOf(int index) {
+		return minZ + (index % strideX) / sizeY;
+	}
+	
+	public BlockVec posOf(int index) {
+		return new BlockVec(xOf(index), yOf(index), zOf(index));
+	}
+	
+	/**
+	 * Walks all blocks of the layout in memory order (x slab by x slab).
+	 */
+	public void forEachBlock(BlockConsumer consumer) {
+		forEachBlockIn(minX, minY, minZ, minX + sizeX, minY + sizeY, minZ + sizeZ, consumer);
+	}
+	
+	/**
+	 * Walks all blocks inside the given bounds (clamped to the layout) in memory order.
+	 * The max coordinates are exclusive.
+	 */
+	public void forEachBlockIn(int fromX, int fromY, int fromZ, int toX, int toY, int toZ, BlockConsumer consumer) {
+		
+		int startX = Math.max(fromX, minX);
+		int startY = Math.max(fromY, minY);
+		int startZ = Math.max(fromZ, minZ);
+		int endX = Math.min(toX, minX + sizeX);
+		int endY = Math.min(toY, minY + sizeY);
+		int endZ = Math.min(toZ, minZ + sizeZ);
+		
+		for (int x = startX; x < endX; x++) {
+			
+			int slabStart = (x - minX) * strideX;
+			
+			for (int z = startZ; z < endZ; z++) {
+				
+				int columnStart = slabStart + (z - minZ) * sizeY - minY;
+				
+				for (int y = startY; y < endY; y++) {
+					consumer.accept(columnStart + y, x, y, z);
+				}
+			}
+		}
+	}
+	
+	@FunctionalInterface
+	public interface BlockConsumer {
+		void accept(int index, int x, int y, int z);
+	}
+}
@@ -0,0 +1,101 @@
+package me.gorgeousone.netherview.blockcache;
+
+import me.gorgeousone.netherview.threedstuff.BlockVec;
+import org.bukkit.Chunk;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.data.BlockData;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Read only copy of the blocks of all chunks intersecting a region of a world.
+ * The snapshots are captured on the main thread, afterwards the blocks can be read from any thread.
+ */
+public final class ChunkSnapshotRegion {
+	
+	private final Map<Long, ChunkSnapshot> chunks;
+	private final int minHeight;
+	private final int maxHeight;
+	
+	private ChunkSnapshotRegion(Map<Long, ChunkSnapshot> chunks, int minHeight, int maxHeight) {
+		this.chunks = chunks;
+		this.minHeight = minHeight;
+		this.maxHeight = maxHeight;
+	}
+	
+	/**
+	 * Loads the chunks between min and max (exclusive) with Paper's async chunk API.
+	 * Has to be called on the main thread. The returned future is completed on the main thread as well.
+	 */
+	public static CompletableFuture<List<Chunk>> loadChunks(World world, BlockVec min, BlockVec max) {
+		
+		int minChunkX = min.getX() >> 4;
+		int minChunkZ = min.getZ() >> 4;
+		int maxChunkX = (max.getX() - 1) >> 4;
+		int maxChunkZ = (max.getZ() - 1) >> 4;
+		
+		List<CompletableFuture<Chunk>> chunkLoads = new ArrayList<>();
+		
+		for (int chunkX = minChunkX; chunkX <= maxChunkX; chunkX++) {
+			for (int chunkZ = minChunkZ; chunkZ <= maxChunkZ; chunkZ++) {
+				chunkLoads.add(world.getChunkAtAsync(chunkX, chunkZ));
+			}
+		}
+		
+		return CompletableFuture.allOf(chunkLoads.toArray(new CompletableFuture[0])).thenApply(
+				v -> chunkLoads.stream().map(CompletableFuture::join).toList());
+	}
+	
+	/**
+	 * Takes snapshots of the loaded chunks. Has to be called on the main thread.
+	 */
+	public static ChunkSnapshotRegion capture(World world, List<Chunk> loadedChunks) {
+		
+		Map<Long, ChunkSnapshot> chunks = new HashMap<>();
+		
+		for (Chunk chunk : loadedChunks) {
+			chunks.put(chunkKey(chunk.getX(), chunk.getZ()), chunk.getChunkSnapshot(false, false, false));
+		}
+		
+		return new ChunkSnapshotRegion(chunks, world.getMinHeight(), world.getMaxHeight());
+	}
+	
+	public BlockData getBlockData(int x, int y, int z) {
+		
+		if (y < minHeight || y >= maxHeight) {
+			return Material.VOID_AIR.createBlockData();
+		}
+		
+		return getChunk(x, z).getBlockData(x & 15, y, z & 15);
+	}
+	
+	public Material getType(int x, int y, int z) {
+		
+		if (y < minHeight || y >= maxHeight) {
+			return Material.VOID_AIR;
+		}
+		
+		return getChunk(x, z).getBlockType(x & 15, y, z & 15);
+	}
+	
+	private ChunkSnapshot getChunk(int x, int z) {
+		
+		ChunkSnapshot chunk = chunks.get(chunkKey(x >> 4, z >> 4));
+		
+		if (chunk == null) {
+			throw new IllegalArgumentException("Block at " + x + ", " + z + " is outside of the captured chunks.");
+		}
+		
+		return chunk;
+	}
+	
+	private static long chunkKey(int chunkX, int chunkZ) {
+		return (long) chunkX << 32 | chunkZ & 0xFFFFFFFFL;
+	}
+}
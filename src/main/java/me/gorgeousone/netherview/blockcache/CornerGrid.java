@@ -0,0 +1,176 @@
+package me.gorgeousone.netherview.blockcache;
+
+import java.util.BitSet;
+
+/**
+ * A grid of bits for the block corners of a cache layout, one bit for each corner that is visible (e.g. inside a view frustum).
+ * The blocks touching any visible corner are derived with word wide shifts over all corners at once,
+ * instead of looking up the 8 blocks around each corner.
+ * <p>
+ * Corners are ordered like blocks in a {@link CacheLayout} that is one larger in each dimension,
+ * so the corner at a block position is the min corner of that block.
+ */
+public class CornerGrid {
+	
+	private final CacheLayout blockLayout;
+	private final CacheLayout cornerLayout;
+	private final long[] corners;
+	
+	public CornerGrid(CacheLayout blockLayout) {
+		
+		this.blockLayout = blockLayout;
+		this.cornerLayout = new CacheLayout(blockLayout.getMin(),
+				blockLayout.getSizeX() + 1,
+				blockLayout.getSizeY() + 1,
+				blockLayout.getSizeZ() + 1);
+		this.corners = new long[(cornerLayout.getVolume() + 63) >> 6];
+	}
+	
+	/**
+	 * Marks the corners at the given x and z from y to y (both inclusive) as visible. Corners outside the grid are ignored.
+	 */
+	public void markColumn(int x, int z, int fromY, int toY) {
+		
+		int minY = cornerLayout.getMinY();
+		int startY = Math.max(fromY, minY);
+		int endY = Math.min(toY, minY + cornerLayout.getSizeY() - 1);
+		
+		if (startY > endY) {
+			return;
+		}
+		
+		int start = cornerLayout.indexOf(x, startY, z);
+		
+		if (start >= 0) {
+			setRange(corners, start, start + endY - startY + 1);
+		}
+	}
+	
+	/**
+	 * Returns the indices in the block layout of all blocks having at least one visible corner.
+	 */
+	public BitSet getTouchedBlocks() {
+		
+		int sizeX = cornerLayout.getSizeX();
+		int sizeY = cornerLayout.getSizeY();
+		int sizeZ = cornerLayout.getSizeZ();
+		int strideX = cornerLayout.getStrideX();
+		int strideZ = cornerLayout.getStrideZ();
+		
+		//a block touches a corner if the corner is at its min corner or one further along any axis,
+		//so the corner bits are spread to the previous corner on each axis, one axis after the other
+		long[] touched = corners.clone();
+		long[] shifted = shiftDown(touched, 1);
+		
+		//the top corner of a column must not spread to the bottom of the next column
+		for (int column = 0; column < sizeX * sizeZ; column++) {
+			clearBit(shifted, column * sizeY + sizeY - 1);
+		}
+		
+		or(touched, shifted);
+		shifted = shiftDown(touched, strideZ);
+		
+		//same for the last corner column of an x slab
+		for (int x = 0; x < sizeX; x++) {
+			clearRange(shifted, x * strideX + (sizeZ - 1) * strideZ, (x + 1) * strideX);
+		}
+		
+		or(touched, shifted);
+		or(touched, shiftDown(touched, strideX));
+		
+		BitSet touchedBlocks = new BitSet(blockLayout.getVolume());
+		
+		for (int x = 0; x < sizeX - 1; x++) {
+			for (int z = 0; z < sizeZ - 1; z++) {
+				
+				int cornerColumn = x * strideX + z * strideZ;
+				int blockColumn = x * blockLayout.getStrideX() + z * blockLayout.getStrideZ();
+				
+				//corners at the max y of the grid do not belong to a block
+				for (int y = nextSetBit(touched, cornerColumn, cornerColumn + sizeY - 1); y >= 0; y = nextSetBit(touched, y + 1, cornerColumn + sizeY - 1)) {
+					touchedBlocks.set(blockColumn + y - cornerColumn);
+				}
+			}
+		}
+		
+		return touchedBlocks;
+	}
+	
+	/**
+	 * Returns bits moved towards lower indices, so the bit at index i is the bit at index i + shift before.
+	 */
+	private static long[] shiftDown(long[] words, int shift) {
+		
+		long[] shifted = new long[words.length];
+		int wordShift = shift >> 6;
+		int bitShift = shift & 63;
+		
+		for (int i = 0; i + wordShift < words.length; i++) {
+			
+			long word = words[i + wordShift] >>> bitShift;
+			
+			if (bitShift != 0 && i + wordShift + 1 < words.length) {
+				word |= words[i + wordShift + 1] << (64 - bitShift);
+			}
+			
+			shifted[i] = word;
+		}
+		
+		return shifted;
+	}
+	
+	private static void or(long[] words, long[] other) {
+		
+		for (int i = 0; i < words.length; i++) {
+			words[i] |= other[i];
+		}
+	}
+	
+	private static void clearBit(long[] words, int index) {
+		words[index >> 6] &= ~(1L << index);
+	}
+	
+	/**
+	 * Sets the bits from the start index (inclusive) to the end index (exclusive).
+	 */
+	private static void setRange(long[] words, int start, int end) {
+		
+		for (int i = start; i < end; i++) {
+			words[i >> 6] |= 1L << i;
+		}
+	}
+	
+	private static void clearRange(long[] words, int start, int end) {
+		
+		for (int i = start; i < end; i++) {
+			clearBit(words, i);
+		}
+	}
+	
+	/**
+	 * Returns the next set bit from the start index (inclusive) to the end index (exclusive) or -1 if there is none.
+	 */
+	private static int nextSetBit(long[] words, int start, int end) {
+		
+		if (start >= end) {
+			return -1;
+		}
+		
+		int wordIndex = start >> 6;
+		long word = words[wordIndex] & -1L << start;
+		
+		while (true) {
+			
+			if (word != 0) {
+				int index = (wordIndex << 6) + Long.numberOfTrailingZeros(word);
+				return index < end ? index : -1;
+			}
+			
+			if (++wordIndex << 6 >= end) {
+				return -1;
+			}
+			
+			word = words[wordIndex];
+		}
+	}
+}
@@ -0,0 +1,232 @@
+package me.gorgeousone.netherview.blockcache;
+
+import me.gorgeousone.netherview.blocktype.BlockType;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The block types of one 16x16x16 chunk section of a world. A section is shared by all block caches covering it,
+ * its blocks are copied once from chunk snapshots and then kept up to date with block changes.
+ * Blocks are ordered like in a {@link CacheLayout}, y innermost, followed by z and then x.
+ * <p>
+ * Each section knows the caches covering it, so a block change can be routed to the affected caches with a single lookup.
+ * Changes while the blocks are being copied are kept and applied on top of the copy, because the copy is taken from older snapshots.
+ */
+public class MirrorSection {
+	
+	public static final int SIZE = 16;
+	public static final int VOLUME = SIZE * SIZE * SIZE;
+	
+	private final WorldMirror mirror;
+	private final int sectionX;
+	private final int sectionY;
+	private final int sectionZ;
+	
+	//null until the blocks were copied from the world
+	private PalettedBlockStorage blocks;
+	private boolean fillPending;
+	
+	//block changes since the snapshots for the pending fill were captured
+	private Map<Integer, BlockType> changesWhileFilling;
+	
+	//caches covering the section or being right next to it
+	private final List<BlockCache> caches;
+	
+	//bytes charged to the portal of the first cache
+	private long chargedBytes;
+	
+	MirrorSection(WorldMirror mirror, int sectionX, int sectionY, int sectionZ) {
+		this.mirror = mirror;
+		this.sectionX = sectionX;
+		this.sectionY = sectionY;
+		this.sectionZ = sectionZ;
+		this.caches = new ArrayList<>();
+	}
+	
+	public int getSectionX() {
+		return sectionX;
+	}
+	
+	public int getSectionY() {
+		return sectionY;
+	}
+	
+	public int getSectionZ() {
+		return sectionZ;
+	}
+	
+	public boolean isFilled() {
+		return blocks != null;
+	}
+	
+	/**
+	 * Returns true if the blocks of the section are currently being copied for a cache.
+	 */
+	public boolean isFillPending() {
+		return fillPending;
+	}
+	
+	public void setFillPending(boolean fillPending) {
+		
+		this.fillPending = fillPending;
+		
+		if (!fillPending) {
+			changesWhileFilling = null;
+		}
+	}
+	
+	/**
+	 * Sets the copied blocks of the section. Has to be called on the main thread.
+	 * Does nothing if the section is filled already, because its blocks are newer than the copy.
+	 */
+	public void fill(PalettedBlockStorage blocks) {
+		
+		if (blocks.getVolume() != VOLUME) {
+			throw new IllegalArgumentException("Expected " + VOLUME + " blocks for a section but got " + blocks.getVolume() + ".");
+		}
+		
+		if (isFilled()) {
+			return;
+		}
+		
+		if (changesWhileFilling != null) {
+			changesWhileFilling.forEach(blocks::set);
+		}
+		
+		this.blocks = blocks;
+		setFillPending(false);
+		updateCharge();
+	}
+	
+	PalettedBlockStorage getBlocks() {
+		return blocks;
+	}
+	
+	/**
+	 * Returns the block type at the given world position, which has to be inside the section.
+	 */
+	public BlockType getBlockType(int x, int y, int z) {
+		return blocks.get(indexOf(x, y, z));
+	}
+	
+	int getPaletteId(int x, int y, int z) {
+		return blocks.getPaletteId(indexOf(x, y, z));
+	}
+	
+	/**
+	 * Sets the block type at the given world position, which has to be inside the section.
+	 * Changes to a section that is not filled yet are kept until it is filled, as long as a fill is pending.
+	 *
+	 * @return the block type before or null if the section is not filled yet
+	 */
+	public BlockType updateBlockType(int x, int y, int z, BlockType blockType) {
+		
+		int index = indexOf(x, y, z);
+		
+		if (blocks == null) {
+			
+			if (fillPending) {
+				
+				if (changesWhileFilling == null) {
+					changesWhileFilling = new HashMap<>();
+				}
+				
+				changesWhileFilling.put(index, blockType);
+			}
+			return null;
+		}
+		
+		BlockType oldBlockType = blocks.get(index);
+		blocks.set(index, blockType);
+		
+		//the palette might have grown
+		updateCharge();
+		return oldBlockType;
+	}
+	
+	/**
+	 * Returns the caches covering this section. The list must not be modified.
+	 */
+	public List<BlockCache> getCaches() {
+		return caches;
+	}
+	
+	int getReferences() {
+		return caches.size();
+	}
+	
+	void addCache(BlockCache cache) {
+		caches.add(cache);
+	}
+	
+	/**
+	 * Removes a cache from the section and returns the count of caches left.
+	 * If the blocks were charged to the cache, they are charged to the next cache.
+	 */
+	int removeCache(BlockCache cache) {
+		
+		boolean wasCharged = !caches.isEmpty() && caches.get(0) == cache;
+		caches.remove(cache);
+		
+		if (wasCharged && chargedBytes != 0) {
+			
+			mirror.charge(cache.getPortal(), -chargedBytes);
+			
+			if (caches.isEmpty()) {
+				chargedBytes = 0;
+			} else {
+				mirror.charge(caches.get(0).getPortal(), chargedBytes);
+			}
+		}
+		
+		return caches.size();
+	}
+	
+	/**
+	 * Charges the change of the estimated size of the blocks to the portal of the first cache.
+	 */
+	private void updateCharge() {
+		
+		long bytes = getEstimatedBytes();
+		
+		if (bytes != chargedBytes && !caches.isEmpty()) {
+			mirror.charge(caches.get(0).getPortal(), bytes - chargedBytes);
+			chargedBytes = bytes;
+		}
+	}
+	
+	/**
+	 * Returns the estimated count of bytes the blocks of this section occupy on the heap.
+	 */
+	public long getEstimatedBytes() {
+		return blocks != null ? blocks.getEstimatedBytes() : 0;
+	}
+	
+	/**
+	 * Copies the blocks of a section from the captured chunks. Does not access the world, so it can be called from any thread.
+	 */
+	public static PalettedBlockStorage copyBlocks(int sectionX, int sectionY, int sectionZ, ChunkSnapshotRegion snapshots) {
+		
+		PalettedBlockStorage blocks = new PalettedBlockStorage(VOLUME);
+		int minX = sectionX * SIZE;
+		int minY = sectionY * SIZE;
+		int minZ = sectionZ * SIZE;
+		
+		for (int x = minX; x < minX + SIZE; x++) {
+			for (int z = minZ; z < minZ + SIZE; z++) {
+				for (int y = minY; y < minY + SIZE; y++) {
+					blocks.set(indexOf(x, y, z), BlockType.of(snapshots.getBlockData(x, y, z)));
+				}
+			}
+		}
+		
+		return blocks;
+	}
+	
+	private static int indexOf(int x, int y, int z) {
+		return (x & 15) << 8 | (z & 15) << 4 | y & 15;
+	}
+}
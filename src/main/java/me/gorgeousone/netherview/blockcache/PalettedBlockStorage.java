@@ -0,0 +1,237 @@
+package me.gorgeousone.netherview.blockcache;
+
+import me.gorgeousone.netherview.blocktype.BlockType;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stores block types as indices into a palette of the distinct block types in it. Blocks are addressed by the linear index
+ * of a {@link CacheLayout}. The palette indices are bit-packed into a long array, their bit width grows (in powers of two)
+ * whenever the palette does. Palette index 0 is reserved for positions without a block type (null).
+ */
+public class PalettedBlockStorage {
+	
+	private static final int MAX_BITS_SHIFT = 4;
+	
+	/**
+	 * Index ranges starting at multiples of this never share a long with other ranges, whatever the bit width.
+	 */
+	static final int WORD_ALIGNMENT = 64 >> 1;
+	
+	private final int volume;
+	
+	private final List<BlockType> palette;
+	private final Map<BlockType, Integer> paletteIds;
+	
+	//bits per entry are always 1 << bitsShift, so entries never span over two longs
+	private int bitsShift;
+	private long entryMask;
+	private long[] data;
+	
+	public PalettedBlockStorage(int volume) {
+		
+		if (volume < 1) {
+			throw new IllegalArgumentException("Cannot create a block storage smaller than 1 block.");
+		}
+		
+		this.volume = volume;
+		
+		palette = new ArrayList<>();
+		paletteIds = new HashMap<>();
+		palette.add(null);
+		
+		//start with 2 bits per entry, which is enough for empty space, air and 2 other block types
+		setBitsShift(1);
+		data = new long[dataLength(bitsShift)];
+	}
+	
+	/**
+	 * Creates a block storage from the palette and packed palette indices of another one, e.g. read from disk.
+	 *
+	 * @param paletteEntries the block types of the palette without the null entry
+	 */
+	PalettedBlockStorage(int volume, List<BlockType> paletteEntries, int bitsShift, long[] data) {
+		
+		this.volume = volume;
+		
+		palette = new ArrayList<>();
+		paletteIds = new HashMap<>();
+		palette.add(null);
+		
+		for (BlockType blockType : paletteEntries) {
+			paletteIds.put(blockType, palette.size());
+			palette.add(blockType);
+		}
+		
+		if (bitsShift < 1 || bitsShift > MAX_BITS_SHIFT || palette.size() - 1 > (1L << (1 << bitsShift)) - 1) {
+			throw new IllegalArgumentException("Palette of " + paletteEntries.size() + " block types does not fit into entries of 2^" + bitsShift + " bits.");
+		}
+		
+		setBitsShift(bitsShift);
+		
+		if (data.length != dataLength(bitsShift)) {
+			throw new IllegalArgumentException("Expected " + dataLength(bitsShift) + " longs of data but got " + data.length + ".");
+		}
+		
+		this.data = data;
+	}
+	
+	/**
+	 * Creates an empty block storage with a fixed palette, so palette indices can be written directly with {@link #setPaletteId}.
+	 * As long as the palette does not grow, several threads can write to the storage at once
+	 * if each of them writes its own range of indices aligned to {@link #WORD_ALIGNMENT}.
+	 *
+	 * @param paletteEntries the block types of the palette without the null entry
+	 */
+	static PalettedBlockStorage withPalette(int volume, List<BlockType> paletteEntries) {
+		
+		int bitsShift = 1;
+		
+		while (bitsShift < MAX_BITS_SHIFT && paletteEntries.size() > (1L << (1 << bitsShift)) - 1) {
+			bitsShift++;
+		}
+		
+		int entriesPerLong = 64 >> bitsShift;
+		return new PalettedBlockStorage(volume, paletteEntries, bitsShift, new long[(volume + entriesPerLong - 1) / entriesPerLong]);
+	}
+	
+	public int getVolume() {
+		return volume;
+	}
+	
+	/**
+	 * Returns an independent copy of the storage with the same palette.
+	 */
+	public PalettedBlockStorage copy() {
+		return new PalettedBlockStorage(volume, palette.subList(1, palette.size()), bitsShift, data.clone());
+	}
+	
+	/**
+	 * Returns the count of distinct block types stored (not counting null).
+	 */
+	public int getPaletteSize() {
+		return palette.size() - 1;
+	}
+	
+	/**
+	 * Returns the block type at the given index.
+	 */
+	public BlockType get(int index) {
+		return palette.get(getPaletteId(index));
+	}
+	
+	/**
+	 * Sets the block type at the given index. Null clears the position.
+	 */
+	public void set(int index, BlockType blockType) {
+		setPaletteId(index, paletteIdOf(blockType));
+	}
+	
+	/**
+	 * Returns the block type a palette index stands for.
+	 */
+	public BlockType getPaletteEntry(int paletteId) {
+		return palette.get(paletteId);
+	}
+	
+	/**
+	 * Returns the palette index of the block at the given index. 0 means that there is no block type stored.
+	 */
+	public int getPaletteId(int index) {
+		
+		int entriesShift = 6 - bitsShift;
+		int bitOffset = (index & ((1 << entriesShift) - 1)) << bitsShift;
+		return (int) ((data[index >>> entriesShift] >>> bitOffset) & entryMask);
+	}
+	
+	/**
+	 * Returns the estimated count of bytes this storage occupies on the heap.
+	 */
+	public long getEstimatedBytes() {
+		//each palette entry costs a list slot and a hash map entry with a boxed index
+		return data.length * (long) Long.BYTES + palette.size() * 64L;
+	}
+	
+	int getBitsShift() {
+		return bitsShift;
+	}
+	
+	/**
+	 * Returns the packed palette indices (not a copy).
+	 */
+	long[] getData() {
+		return data;
+	}
+	
+	/**
+	 * Sets the palette index of the block at the given index. The index has to exist in the palette already.
+	 */
+	void setPaletteId(int index, int paletteId) {
+		
+		int entriesShift = 6 - bitsShift;
+		int wordIndex = index >>> entriesShift;
+		int bitOffset = (index & ((1 << entriesShift) - 1)) << bitsShift;
+		
+		data[wordIndex] = data[wordIndex] & ~(entryMask << bitOffset) | ((long) paletteId << bitOffset);
+	}
+	
+	private int paletteIdOf(BlockType blockType) {
+		
+		if (blockType == null) {
+			return 0;
+		}
+		
+		Integer paletteId = paletteIds.get(blockType);
+		
+		if (paletteId != null) {
+			return paletteId;
+		}
+		
+		int newId = palette.size();
+		
+		if (newId > entryMask) {
+			resize(bitsShift + 1);
+		}
+		
+		palette.add(blockType);
+		paletteIds.put(blockType, newId);
+		return newId;
+	}
+	
+	/**
+	 * Repacks all palette indices with the new bit width
+	 */
+	private void resize(int newBitsShift) {
+		
+		if (newBitsShift > MAX_BITS_SHIFT) {
+			throw new IllegalStateException("Cannot store more than " + entryMask + " distinct block types.");
+		}
+		
+		int[] entries = new int[volume];
+		
+		for (int i = 0; i < volume; i++) {
+			entries[i] = getPaletteId(i);
+		}
+		
+		setBitsShift(newBitsShift);
+		data = new long[dataLength(newBitsShift)];
+		
+		for (int i = 0; i < volume; i++) {
+			setPaletteId(i, entries[i]);
+		}
+	}
+	
+	private void setBitsShift(int bitsShift) {
+		this.bitsShift = bitsShift;
+		this.entryMask = (1L << (1 << bitsShift)) - 1;
+	}
+	
+	private int dataLength(int bitsShift) {
+		
+		int entriesPerLong = 64 >> bitsShift;
+		return (volume + entriesPerLong - 1) / entriesPerLong;
+	}
+}
@@ -6,33 +6,63 @@ import me.gorgeousone.netherview.portal.Portal;
 import me.gorgeousone.netherview.threedstuff.BlockVec;
 import org.bukkit.World;
 
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.stream.IntStream;
 
+/**
+ * The blocks of a block cache of a counter portal, transformed to the location of the portal they are displayed in.
+ * A projection can either be a view that maps every read through the inverse transform into the source cache,
+ * or it can hold rotated copies of the source blocks (which are shared with other projections of the same rotation).
+ */
 public class ProjectionCache {
 	
+	//count of indices copied by one task, has to be a multiple of the word alignment of the storage
+	private static final int COPY_SLICE_LENGTH = 128 * PalettedBlockStorage.WORD_ALIGNMENT;
+	
 	private Portal portal;
 	private Transform blockTransform;
 	
-	private BlockType[][][] blockCopies;
+	private BlockCache sourceCache;
+	private Transform inverseTransform;
+	private int quarterTurns;
+	
+	//both null if the projection is only a view of the source cache
+	private ProjectionCopyPool copyPool;
+	private ProjectionCopyPool.SharedCopies blockCopies;
+	
+	private CacheLayout layout;
 	private BlockVec min;
 	private BlockVec max;
 	
 	private int cacheLength;
 	
-	public ProjectionCache(Portal projectedPortal, BlockCache sourceCache, Transform blockTransform) {
+	/**
+	 * @param copyPool pool to share rotated block copies with other projections, or null if the projection should read
+	 *                 the blocks from the source cache on demand
+	 */
+	public ProjectionCache(Portal projectedPortal, BlockCache sourceCache, Transform blockTransform, ProjectionCopyPool copyPool) {
 		
 		this.portal = projectedPortal;
 		this.blockTransform = blockTransform;
 		
-		createBlockCopies(sourceCache);
+		this.sourceCache = sourceCache;
+		this.inverseTransform = blockTransform.clone().invert();
+		this.quarterTurns = blockTransform.getQuarterTurns();
+		
+		calculateBounds();
+		
+		if (copyPool != null) {
+			this.copyPool = copyPool;
+			this.blockCopies = copyPool.acquire(sourceCache, quarterTurns, this::createBlockCopies);
+		}
 		
 		if (portal.getAxis() == Axis.X) {
-			cacheLength = blockCopies[0][0].length;
+			cacheLength = max.getZ() - min.getZ();
 		} else {
-			cacheLength = blockCopies.length;
+			cacheLength = max.getX() - min.getX();
 		}
 	}
 	
@@ -48,6 +78,18 @@ public class ProjectionCache {
 		return blockTransform;
 	}
 	
+	public BlockCache getSourceCache() {
+		return sourceCache;
+	}
+	
+	/**
+	 * Returns true if the projection holds its own block copies which need to be updated when the source cache changes.
+	 * Otherwise all block types are read from the source cache directly.
+	 */
+	public boolean hasBlockCopies() {
+		return blockCopies != null;
+	}
+	
 	public BlockVec getMin() {
 		return min.clone();
 	}
@@ -56,6 +98,10 @@ public class ProjectionCache {
 		return max.clone();
 	}
 	
+	public CacheLayout getLayout() {
+		return layout;
+	}
+	
 	/**
 	 * Returns the length of the projection cache measured from portal to back wall.
 	 * The value is important for the length of viewing frustums.
@@ -65,109 +111,190 @@ public class ProjectionCache {
 	}
 	
 	public boolean contains(BlockVec loc) {
-		return loc.getX() >= min.getX() && loc.getX() < max.getX() &&
-		       loc.getY() >= min.getY() && loc.getY() < max.getY() &&
-		       loc.getZ() >= min.getZ() && loc.getZ() < max.getZ();
+		return layout.contains(loc);
 	}
 	
 	public BlockType getBlockTypeAt(BlockVec loc) {
 		
-		if (!contains(loc)) {
-			return null;
+		int index = layout.indexOf(loc);
+		return index < 0 ? null : getBlockTypeAt(index);
+	}
+	
+	/**
+	 * Returns the block type at the given index of the layout or null if the block is not visible.
+	 */
+	public BlockType getBlockTypeAt(int index) {
+		
+		if (blockCopies == null) {
+			
+			int x = layout.xOf(index);
+			int y = layout.yOf(index);
+			int z = layout.zOf(index);
+			
+			BlockType sourceBlockType = sourceCache.getBlockTypeAt(
+					inverseTransform.transformX(x, z),
+					inverseTransform.transformY(y),
+					inverseTransform.transformZ(x, z));
+			return sourceBlockType != null ? sourceBlockType.rotate(quarterTurns) : null;
 		}
 		
-		return blockCopies
-				[loc.getX() - min.getX()]
-				[loc.getY() - min.getY()]
-				[loc.getZ() - min.getZ()];
+		return blockCopies.get(index);
 	}
 	
+	/**
+	 * Updates a block copy of the projection. Has no effect if the projection is only a view of the source cache.
+	 */
 	public void setBlockTypeAt(BlockVec blockPos, BlockType newBlockData) {
 		
-		blockCopies
-				[blockPos.getX() - min.getX()]
-				[blockPos.getY() - min.getY()]
-				[blockPos.getZ() - min.getZ()] = newBlockData;
+		if (blockCopies == null) {
+			return;
+		}
+		
+		blockCopies.set(layout.indexOf(blockPos), newBlockData);
 	}
 	
-	public Map<BlockVec, BlockType> getBlockTypesAround(BlockVec blockCorner) {
+	private void calculateBounds() {
 		
-		Map<BlockVec, BlockType> blocksAroundCorner = new HashMap<>();
+		BlockVec corner1 = blockTransform.transformVec(sourceCache.getMin());
+		BlockVec corner2 = blockTransform.transformVec(sourceCache.getMax());
+		
+		min = BlockVec.getMinimum(corner1, corner2);
+		max = BlockVec.getMaximum(corner1, corner2).add(1, 0, 1);
 		
-		for (BlockVec blockPos : getAllCornerLocs(blockCorner)) {
+		layout = new CacheLayout(min,
+				max.getX() - min.getX(),
+				max.getY() - min.getY(),
+				max.getZ() - min.getZ());
+	}
+	
+	/**
+	 * Releases the shared block copies of this projection. Should be called when the projection is not used anymore.
+	 */
+	public void release() {
+		
+		if (copyPool != null) {
+			copyPool.release(sourceCache, quarterTurns);
+			copyPool = null;
+		}
+	}
+	
+	/**
+	 * Copies and rotates the source blocks relative to the min of this projection.
+	 * Projections with the same rotation but other translations can use the copies with their own min.
+	 * <p>
+	 * The palette of the copies contains the rotated palette entries of all mirror sections of the source.
+	 * For each section a lookup table translates its palette indices to the ones of the copies, which also takes care of
+	 * the rotation and the border block type. Because the transform only turns around the y axis,
+	 * every block column of the projection is one column of the source, which is copied in one go.
+	 * The copies are written in parallel, each task filling its own range of indices.
+	 */
+	private PalettedBlockStorage createBlockCopies() {
+		
+		MirrorSection[] sourceSections = sourceCache.getSections();
+		List<BlockType> rotatedPalette = new ArrayList<>();
+		Map<BlockType, Integer> rotatedPaletteIds = new HashMap<>();
+		
+		int borderId = rotatedPaletteIdOf(sourceCache.getBorderBlockType(), rotatedPalette, rotatedPaletteIds);
+		int[][] paletteLookup = new int[sourceSections.length][];
+		int[][] borderPaletteLookup = new int[sourceSections.length][];
+		
+		for (int i = 0; i < sourceSections.length; i++) {
 			
-			if (!contains(blockPos)) {
+			if (!sourceSections[i].isFilled()) {
 				continue;
 			}
 			
-			BlockType blockType = getBlockTypeAt(blockPos);
+			PalettedBlockStorage sectionBlocks = sourceSections[i].getBlocks();
+			int paletteSize = sectionBlocks.getPaletteSize();
+			paletteLookup[i] = new int[paletteSize + 1];
+			borderPaletteLookup[i] = new int[paletteSize + 1];
 			
-			if (blockType != null) {
-				blocksAroundCorner.put(blockPos, blockType.clone());
+			for (int paletteId = 1; paletteId <= paletteSize; paletteId++) {
+				
+				BlockType blockType = sectionBlocks.getPaletteEntry(paletteId);
+				paletteLookup[i][paletteId] = rotatedPaletteIdOf(blockType, rotatedPalette, rotatedPaletteIds);
+				borderPaletteLookup[i][paletteId] = blockType.isOccluding() ? paletteLookup[i][paletteId] : borderId;
 			}
 		}
 		
-		return blocksAroundCorner;
-	}
-	
-	private void createBlockCopies(BlockCache sourceCache) {
-		
-		BlockVec sourceMin = sourceCache.getMin();
-		BlockVec sourceMax = sourceCache.getMax();
-		
-		BlockVec corner1 = blockTransform.transformVec(sourceMin.clone());
-		BlockVec corner2 = blockTransform.transformVec(sourceMax.clone());
-		
-		min = BlockVec.getMinimum(corner1, corner2);
-		max = BlockVec.getMaximum(corner1, corner2).add(1, 0, 1);
-		
-		int minX = min.getX();
-		int minY = min.getY();
-		int minZ = min.getZ();
+		int volume = layout.getVolume();
+		int sizeY = layout.getSizeY();
+		int sizeZ = layout.getSizeZ();
+		CacheLayout sourceLayout = sourceCache.getLayout();
+		PalettedBlockStorage blockCopies = PalettedBlockStorage.withPalette(volume, rotatedPalette);
 		
-		blockCopies = new BlockType
-				[max.getX() - minX]
-				[max.getY() - minY]
-				[max.getZ() - minZ];
+		//source position of the min of the projection and the source steps for one block along x and z of the projection
+		BlockVec origin = inverseTransform.transformVec(layout.getMin());
+		BlockVec stepX = inverseTransform.transformVec(layout.getMin().add(1, 0, 0)).subtract(origin);
+		BlockVec stepZ = inverseTransform.transformVec(layout.getMin().add(0, 0, 1)).subtract(origin);
 		
-		for (int x = sourceMin.getX(); x < sourceMax.getX(); x++) {
-			for (int y = sourceMin.getY(); y < sourceMax.getY(); y++) {
-				for (int z = sourceMin.getZ(); z < sourceMax.getZ(); z++) {
-					
-					BlockVec blockPos = new BlockVec(x, y, z);
-					BlockType blockType = sourceCache.getBlockTypeAt(blockPos);
-					
-					if (blockType == null) {
-						continue;
-					}
-					
-					BlockType rotatedBlockType = blockType.clone().rotate(blockTransform.getQuarterTurns());
-					BlockVec newBlockPos = blockTransform.transformVec(blockPos);
+		IntStream.range(0, (volume + COPY_SLICE_LENGTH - 1) / COPY_SLICE_LENGTH).parallel().forEach(slice -> {
+			
+			int index = slice * COPY_SLICE_LENGTH;
+			int sliceEnd = Math.min(volume, index + COPY_SLICE_LENGTH);
+			
+			while (index < sliceEnd) {
+				
+				//columns are counted z first, the same way the layout orders them
+				int column = index / sizeY;
+				int dx = column / sizeZ;
+				int dz = column % sizeZ;
+				int dy = index - column * sizeY;
+				int columnEnd = Math.min(sliceEnd, (column + 1) * sizeY);
+				
+				int sourceX = origin.getX() + dx * stepX.getX() + dz * stepZ.getX();
+				int sourceY = origin.getY() + dy;
+				int sourceZ = origin.getZ() + dx * stepX.getZ() + dz * stepZ.getZ();
+				int sourceStart = sourceLayout.indexOf(sourceX, sourceY, sourceZ);
+				
+				if (sourceStart >= 0) {
 					
-					blockCopies
-							[newBlockPos.getX() - minX]
-							[newBlockPos.getY() - minY]
-							[newBlockPos.getZ() - minZ] = rotatedBlockType;
+					int length = Math.min(columnEnd - index, sourceLayout.getMinY() + sourceLayout.getSizeY() - sourceY);
+					copyVisibleColumn(sourceX, sourceY, sourceZ, sourceStart, length, blockCopies, index, paletteLookup, borderPaletteLookup);
 				}
+				
+				index = columnEnd;
 			}
-		}
+		});
+		
+		return blockCopies;
 	}
 	
-	private Set<BlockVec> getAllCornerLocs(BlockVec blockCorner) {
+	/**
+	 * Copies the translated palette indices of the visible blocks of a source column. Runs of hidden blocks are skipped word wise.
+	 */
+	private void copyVisibleColumn(int sourceX,
+	                               int sourceY,
+	                               int sourceZ,
+	                               int sourceStart,
+	                               int length,
+	                               PalettedBlockStorage blockCopies,
+	                               int start,
+	                               int[][] paletteLookup,
+	                               int[][] borderPaletteLookup) {
 		
-		Set<BlockVec> locsAroundCorner = new HashSet<>();
+		MirrorSection[] sourceSections = sourceCache.getSections();
+		int sourceEnd = sourceStart + length;
 		
-		for (int dx = -1; dx <= 0; dx++) {
-			for (int dy = -1; dy <= 0; dy++) {
-				for (int dz = -1; dz <= 0; dz++) {
-					locsAroundCorner.add(new BlockVec(
-							blockCorner.getX() + dx,
-							blockCorner.getY() + dy,
-							blockCorner.getZ() + dz));
-				}
+		for (int sourceIndex = sourceCache.nextVisibleIndex(sourceStart);
+		     sourceIndex >= 0 && sourceIndex < sourceEnd;
+		     sourceIndex = sourceCache.nextVisibleIndex(sourceIndex + 1)) {
+			
+			int y = sourceY + sourceIndex - sourceStart;
+			int sectionIndex = sourceCache.sectionIndexOf(sourceX, y, sourceZ);
+			int[] lookup = sourceCache.isBorder(sourceX, y, sourceZ) ? borderPaletteLookup[sectionIndex] : paletteLookup[sectionIndex];
+			
+			if (lookup != null) {
+				blockCopies.setPaletteId(start + sourceIndex - sourceStart, lookup[sourceSections[sectionIndex].getPaletteId(sourceX, y, sourceZ)]);
 			}
 		}
+	}
+	
+	private int rotatedPaletteIdOf(BlockType blockType, List<BlockType> rotatedPalette, Map<BlockType, Integer> rotatedPaletteIds) {
 		
-		return locsAroundCorner;
+		return rotatedPaletteIds.computeIfAbsent(blockType.rotate(quarterTurns), rotatedType -> {
+			rotatedPalette.add(rotatedType);
+			return rotatedPalette.size();
+		});
 	}
 }
\ No newline at end of file
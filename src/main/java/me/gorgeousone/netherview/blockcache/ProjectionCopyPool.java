@@ -0,0 +1,113 @@
+package me.gorgeousone.netherview.blockcache;
+
+import me.gorgeousone.netherview.blocktype.BlockType;
+import me.gorgeousone.netherview.portal.Portal;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.ObjLongConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Reference counted pool of rotated block copies that projection caches share.
+ * Projections of the same block cache with the same rotation only differ by translation,
+ * so they can use the same block storage with their own offset.
+ * The memory of the copies is charged to the portal of the source cache, because they are dropped together with its block caches.
+ * It is charged again whenever a block change lets the palette of the copies grow.
+ */
+public class ProjectionCopyPool {
+	
+	private final Map<CopyKey, SharedCopies> sharedCopies;
+	private final ObjLongConsumer<Portal> memoryListener;
+	
+	/**
+	 * @param memoryListener is called with a portal and the count of bytes charged to it, negative if bytes were freed
+	 */
+	public ProjectionCopyPool(ObjLongConsumer<Portal> memoryListener) {
+		this.sharedCopies = new HashMap<>();
+		this.memoryListener = memoryListener;
+	}
+	
+	/**
+	 * Returns the block copies shared for the source cache and rotation and increases their reference count.
+	 *
+	 * @param copyFactory creates the block copies if there are none yet
+	 */
+	public synchronized SharedCopies acquire(BlockCache sourceCache, int quarterTurns, Supplier<PalettedBlockStorage> copyFactory) {
+		
+		SharedCopies copies = sharedCopies.computeIfAbsent(new CopyKey(sourceCache, quarterTurns),
+				key -> new SharedCopies(sourceCache.getPortal(), copyFactory.get()));
+		
+		copies.references++;
+		return copies;
+	}
+	
+	/**
+	 * Decreases the reference count of the block copies and drops them when they are not used by any projection anymore.
+	 */
+	public synchronized void release(BlockCache sourceCache, int quarterTurns) {
+		
+		CopyKey key = new CopyKey(sourceCache, quarterTurns);
+		SharedCopies copies = sharedCopies.get(key);
+		
+		if (copies != null && --copies.references <= 0) {
+			sharedCopies.remove(key);
+			memoryListener.accept(copies.portal, -copies.chargedBytes);
+			copies.chargedBytes = 0;
+		}
+	}
+	
+	public synchronized void clear() {
+		sharedCopies.clear();
+	}
+	
+	private record CopyKey(BlockCache sourceCache, int quarterTurns) {}
+	
+	/**
+	 * Rotated block copies shared by projections, which keep their charged memory up to date when blocks are changed.
+	 */
+	public class SharedCopies {
+		
+		private final Portal portal;
+		private final PalettedBlockStorage blockCopies;
+		private long chargedBytes;
+		private int references;
+		
+		private SharedCopies(Portal portal, PalettedBlockStorage blockCopies) {
+			
+			this.portal = portal;
+			this.blockCopies = blockCopies;
+			updateCharge();
+		}
+		
+		public BlockType get(int index) {
+			return blockCopies.get(index);
+		}
+		
+		/**
+		 * Sets a block type of the copies and charges the change of their estimated size.
+		 */
+		public void set(int index, BlockType blockType) {
+			
+			synchronized (ProjectionCopyPool.this) {
+				
+				blockCopies.set(index, blockType);
+				
+				//the palette might have grown
+				if (references > 0) {
+					updateCharge();
+				}
+			}
+		}
+		
+		private void updateCharge() {
+			
+			long bytes = blockCopies.getEstimatedBytes();
+			
+			if (bytes != chargedBytes) {
+				memoryListener.accept(portal, bytes - chargedBytes);
+				chargedBytes = bytes;
+			}
+		}
+	}
+}
@@ -83,6 +83,24 @@ public class Transform {
 		relativeVec.setZ(rotYMatrix[1][0] * transX + rotYMatrix[1][1] * transZ);
 	}
 	
+	/**
+	 * Returns the transformed x coordinate of a block position without creating a vector.
+	 */
+	public int transformX(int x, int z) {
+		return rotYMatrix[0][0] * (x - rotCenter.getX()) + rotYMatrix[0][1] * (z - rotCenter.getZ()) + rotCenter.getX() + translation.getX();
+	}
+	
+	public int transformY(int y) {
+		return y + translation.getY();
+	}
+	
+	/**
+	 * Returns the transformed z coordinate of a block position without creating a vector.
+	 */
+	public int transformZ(int x, int z) {
+		return rotYMatrix[1][0] * (x - rotCenter.getX()) + rotYMatrix[1][1] * (z - rotCenter.getZ()) + rotCenter.getZ() + translation.getZ();
+	}
+	
 	public Vector transformVec(Vector vec) {
 		
 		
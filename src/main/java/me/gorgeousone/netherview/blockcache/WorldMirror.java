@@ -0,0 +1,84 @@
+package me.gorgeousone.netherview.blockcache;
+
+import me.gorgeousone.netherview.portal.Portal;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Shared copy of the blocks of a world around its portals, stored in chunk sections.
+ * Block caches acquire the sections they cover and release them when they are dropped, so caches of portals close to each other
+ * share their blocks. Memory and block update costs only grow with the area covered, not with the count of caches.
+ * The sections also serve as index to find the caches affected by a block change.
+ * <p>
+ * The memory of each section is charged to the portal of the first cache covering it and passed on to the next cache
+ * when that one is released, so the charged bytes of all portals add up to the memory actually used.
+ * <p>
+ * All methods have to be called on the main thread.
+ */
+public class WorldMirror {
+	
+	private final Map<Long, MirrorSection> sections;
+	private final ObjLongConsumer<Portal> memoryListener;
+	
+	/**
+	 * @param memoryListener is called with a portal and the count of bytes charged to it, negative if bytes were freed
+	 */
+	public WorldMirror(ObjLongConsumer<Portal> memoryListener) {
+		this.sections = new HashMap<>();
+		this.memoryListener = memoryListener;
+	}
+	
+	/**
+	 * Packs the coordinates of a chunk section into a single long.
+	 */
+	public static long sectionKey(int sectionX, int sectionY, int sectionZ) {
+		return ((long) sectionX & 0x3FFFFF) << 42 | ((long) sectionZ & 0x3FFFFF) << 20 | sectionY & 0xFFFFF;
+	}
+	
+	/**
+	 * Returns the section at the given section coordinates and registers the cache at it.
+	 * New sections are empty until they are filled.
+	 */
+	MirrorSection acquire(int sectionX, int sectionY, int sectionZ, BlockCache cache) {
+		
+		MirrorSection section = sections.computeIfAbsent(sectionKey(sectionX, sectionY, sectionZ),
+				key -> new MirrorSection(this, sectionX, sectionY, sectionZ));
+		
+		section.addCache(cache);
+		return section;
+	}
+	
+	/**
+	 * Removes the cache from the section and drops the section if it is not used by any cache anymore.
+	 */
+	void release(MirrorSection section, BlockCache cache) {
+		
+		if (section.removeCache(cache) <= 0) {
+			sections.remove(sectionKey(section.getSectionX(), section.getSectionY(), section.getSectionZ()));
+		}
+	}
+	
+	/**
+	 * Returns the mirrored section containing the block position or null if it is not mirrored.
+	 */
+	public MirrorSection getSectionAt(int x, int y, int z) {
+		return sections.get(sectionKey(x >> 4, y >> 4, z >> 4));
+	}
+	
+	/**
+	 * Charges bytes to a portal, or frees them if negative.
+	 */
+	void charge(Portal portal, long bytes) {
+		memoryListener.accept(portal, bytes);
+	}
+	
+	public int getSectionCount() {
+		return sections.size();
+	}
+	
+	public void clear() {
+		sections.clear();
+	}
+}
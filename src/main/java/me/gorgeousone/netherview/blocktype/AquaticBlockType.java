@@ -4,10 +4,7 @@ import com.comphenix.protocol.wrappers.WrappedBlockData;
 import me.gorgeousone.netherview.blocktype.rotation.AquaticRailUtils;
 import me.gorgeousone.netherview.blocktype.rotation.RotationUtils;
 import org.bukkit.Axis;
-import org.bukkit.Material;
-import org.bukkit.block.Block;
 import org.bukkit.block.BlockFace;
-import org.bukkit.block.BlockState;
 import org.bukkit.block.data.BlockData;
 import org.bukkit.block.data.Directional;
 import org.bukkit.block.data.MultipleFacing;
@@ -19,40 +16,66 @@ import org.bukkit.block.data.type.RedstoneWire;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
-import java.util.Objects;
 import java.util.Set;
 
 public final class AquaticBlockType extends BlockType {
 	
-	private BlockData blockData;
+	private final BlockData blockData;
+	private final boolean isOccluding;
 	
-	public AquaticBlockType(Material material) {
-		blockData = material.createBlockData();
-	}
-	
-	public AquaticBlockType(Block block) {
-		blockData = block.getBlockData().clone();
-	}
+	//memoized results of rotate() indexed by quarter turns, null if not calculated yet
+	//(since all block types are interned, a racy double calculation still stores the same instance)
+	private final BlockType[] rotations;
 	
-	public AquaticBlockType(BlockState state) {
-		blockData = state.getBlockData().clone();
-	}
+	//protocol handle of the block data, created on first use
+	private volatile WrappedBlockData wrapped;
 	
-	public AquaticBlockType(BlockData data) {
-		blockData = data.clone();
+	/**
+	 * Only to be called by the {@link BlockTypeRegistry} with a BlockData that is not referenced anywhere else.
+	 */
+	AquaticBlockType(BlockData blockData) {
+		this.blockData = blockData;
+		this.isOccluding = blockData.getMaterial().isOccluding();
+		this.rotations = isRotatable(blockData) ? new BlockType[4] : null;
 	}
 	
-	public AquaticBlockType(String serialized) {
-		blockData = Material.valueOf(serialized.toUpperCase()).createBlockData();
+	private static boolean isRotatable(BlockData blockData) {
+		return blockData instanceof Orientable ||
+		       blockData instanceof Directional ||
+		       blockData instanceof Rotatable ||
+		       blockData instanceof MultipleFacing ||
+		       blockData instanceof RedstoneWire ||
+		       blockData instanceof Rail;
 	}
 	
 	@Override
 	public BlockType rotate(int quarterTurns) {
 		
-		if (quarterTurns == 0) {
+		if (rotations == null) {
 			return this;
 		}
 		
+		int turns = quarterTurns & 3;
+		BlockType rotated = rotations[turns];
+		
+		if (rotated == null) {
+			rotated = turns == 0 ? this : calculateRotation(turns);
+			rotations[turns] = rotated;
+			
+			//rotating back leads to this block type again
+			if (rotated instanceof AquaticBlockType aquaticRotated && aquaticRotated.rotations != null) {
+				aquaticRotated.rotations[(4 - turns) & 3] = this;
+			}
+		}
+		
+		return rotated;
+	}
+	
+	/**
+	 * Rotates a clone of the block data. The clone is not used anywhere else, so it is interned without another copy.
+	 */
+	private BlockType calculateRotation(int quarterTurns) {
+		
 		//e.g. logs
 		if (blockData instanceof Orientable) {
 			
@@ -60,28 +83,32 @@ public final class AquaticBlockType extends BlockType {
 				return this;
 			}
 			
-			Orientable orientable = (Orientable) blockData;
-			
-			if (orientable.getAxis() != Axis.Y) {
-				orientable.setAxis(orientable.getAxis() == Axis.X ? Axis.Z : Axis.X);
+			if (((Orientable) blockData).getAxis() == Axis.Y) {
+				return this;
 			}
 			
+			Orientable orientable = (Orientable) blockData.clone();
+			orientable.setAxis(orientable.getAxis() == Axis.X ? Axis.Z : Axis.X);
+			return BlockTypeRegistry.internOwned(orientable);
+			
 			//e.g. furnaces, hoppers
 		} else if (blockData instanceof Directional) {
 			
-			Directional directional = (Directional) blockData;
+			Directional directional = (Directional) blockData.clone();
 			directional.setFacing(RotationUtils.getRotatedFace(directional.getFacing(), quarterTurns));
+			return BlockTypeRegistry.internOwned(directional);
 			
 			//e.g. signs
 		} else if (blockData instanceof Rotatable) {
 			
-			Rotatable rotatable = (Rotatable) blockData;
+			Rotatable rotatable = (Rotatable) blockData.clone();
 			rotatable.setRotation(RotationUtils.getRotatedFace(rotatable.getRotation(), quarterTurns));
+			return BlockTypeRegistry.internOwned(rotatable);
 			
 			//e.g. fences
 		} else if (blockData instanceof MultipleFacing) {
 			
-			MultipleFacing multiFacing = (MultipleFacing) blockData;
+			MultipleFacing multiFacing = (MultipleFacing) blockData.clone();
 			Set<BlockFace> facings = new HashSet<>(multiFacing.getFaces());
 			
 			for (BlockFace face : multiFacing.getAllowedFaces()) {
@@ -92,9 +119,11 @@ public final class AquaticBlockType extends BlockType {
 				multiFacing.setFace(RotationUtils.getRotatedFace(face, quarterTurns), true);
 			}
 			
+			return BlockTypeRegistry.internOwned(multiFacing);
+			
 		} else if (blockData instanceof RedstoneWire) {
 			
-			RedstoneWire wire = (RedstoneWire) blockData;
+			RedstoneWire wire = (RedstoneWire) blockData.clone();
 			Map<BlockFace, RedstoneWire.Connection> connections = new HashMap<>();
 			
 			for (BlockFace face : wire.getAllowedFaces()) {
@@ -104,10 +133,13 @@ public final class AquaticBlockType extends BlockType {
 			for (BlockFace face : connections.keySet())
 				wire.setFace(RotationUtils.getRotatedFace(face, quarterTurns), connections.get(face));
 			
+			return BlockTypeRegistry.internOwned(wire);
+			
 		} else if (blockData instanceof Rail) {
 			
-			Rail rail = (Rail) blockData;
+			Rail rail = (Rail) blockData.clone();
 			rail.setShape(AquaticRailUtils.getRotatedRail(rail.getShape(), quarterTurns));
+			return BlockTypeRegistry.internOwned(rail);
 		}
 		
 		return this;
@@ -115,33 +147,28 @@ public final class AquaticBlockType extends BlockType {
 	
 	@Override
 	public WrappedBlockData getWrapped() {
-		return WrappedBlockData.createData(blockData);
-	}
-	
-	@Override
-	public boolean isOccluding() {
-		return blockData.getMaterial().isOccluding();
+		
+		WrappedBlockData wrapped = this.wrapped;
+		
+		if (wrapped == null) {
+			wrapped = WrappedBlockData.createData(blockData);
+			this.wrapped = wrapped;
+		}
+		
+		return wrapped;
 	}
 	
-	@Override
-	public int hashCode() {
-		return Objects.hash(blockData);
+	void clearWrapped() {
+		wrapped = null;
 	}
 	
 	@Override
-	public AquaticBlockType clone() {
-		return new AquaticBlockType(blockData);
+	public boolean isOccluding() {
+		return isOccluding;
 	}
 	
 	@Override
-	public boolean equals(Object o) {
-		if (this == o) {
-			return true;
-		}
-		if (!(o instanceof AquaticBlockType)) {
-			return false;
-		}
-		AquaticBlockType blockType = (AquaticBlockType) o;
-		return blockData.equals(blockType.blockData);
+	public String toString() {
+		return blockData.getAsString();
 	}
-}
\ No newline at end of file
+}
@@ -4,27 +4,36 @@ import com.comphenix.protocol.wrappers.WrappedBlockData;
 import org.bukkit.Material;
 import org.bukkit.block.Block;
 import org.bukkit.block.BlockState;
+import org.bukkit.block.data.BlockData;
 
+/**
+ * Immutable representation of a block state. Instances are interned by the {@link BlockTypeRegistry},
+ * so there is only one BlockType per block state and they can be compared with ==.
+ */
 public sealed abstract class BlockType permits AquaticBlockType {
 	
 	public static BlockType of(Block block) {
-		return new AquaticBlockType(block);
+		return BlockTypeRegistry.intern(block.getBlockData());
 	}
 	
 	public static BlockType of(Material material) {
-		return new AquaticBlockType(material);
+		return BlockTypeRegistry.intern(material.createBlockData());
 	}
 	
 	public static BlockType of(BlockState state) {
-		return new AquaticBlockType(state);
+		return BlockTypeRegistry.intern(state.getBlockData());
+	}
+	
+	public static BlockType of(BlockData data) {
+		return BlockTypeRegistry.intern(data);
 	}
 	
 	public static BlockType of(String serialized) {
-		return new AquaticBlockType(serialized);
+		return of(Material.valueOf(serialized.toUpperCase()));
 	}
 	
 	/**
-	 * Rotates the BlockType if it is rotatable in the xz plane in any way
+	 * Returns the block type rotated in the xz plane (or itself if it is not rotatable in any way)
 	 *
 	 * @param quarterTurns count of 90° turns performed (between 0 and 3)
 	 */
@@ -33,6 +42,4 @@ public sealed abstract class BlockType permits AquaticBlockType {
 	public abstract WrappedBlockData getWrapped();
 	
 	public abstract boolean isOccluding();
-	
-	public abstract BlockType clone();
 }
@@ -0,0 +1,58 @@
+package me.gorgeousone.netherview.blocktype;
+
+import org.bukkit.block.data.BlockData;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Flyweight registry that holds exactly one immutable BlockType per distinct block state.
+ * Because all block types are interned here they can be compared by reference.
+ */
+public final class BlockTypeRegistry {
+	
+	private static final Map<BlockData, AquaticBlockType> BLOCK_TYPES = new ConcurrentHashMap<>();
+	
+	private BlockTypeRegistry() {}
+	
+	/**
+	 * Returns the canonical block type for the block state. The passed BlockData is not stored and can be reused by the caller.
+	 */
+	public static AquaticBlockType intern(BlockData blockData) {
+		
+		AquaticBlockType blockType = BLOCK_TYPES.get(blockData);
+		
+		if (blockType != null) {
+			return blockType;
+		}
+		
+		//the map key is a private copy so it cannot be mutated from outside
+		return register(blockData.clone());
+	}
+	
+	/**
+	 * Returns the canonical block type for a BlockData that is not referenced anywhere else, without copying it.
+	 * The caller must not modify the BlockData afterwards.
+	 */
+	static AquaticBlockType internOwned(BlockData blockData) {
+		
+		AquaticBlockType blockType = BLOCK_TYPES.get(blockData);
+		return blockType != null ? blockType : register(blockData);
+	}
+	
+	private static AquaticBlockType register(BlockData blockData) {
+		
+		AquaticBlockType newBlockType = new AquaticBlockType(blockData);
+		AquaticBlockType blockType = BLOCK_TYPES.putIfAbsent(blockData, newBlockType);
+		
+		return blockType != null ? blockType : newBlockType;
+	}
+	
+	/**
+	 * Drops the cached protocol handles of all block types (at most one per interned block state).
+	 * They will be recreated on demand, e.g. after ProtocolLib was reloaded.
+	 */
+	public static void clearWrappedBlockData() {
+		BLOCK_TYPES.values().forEach(AquaticBlockType::clearWrapped);
+	}
+}
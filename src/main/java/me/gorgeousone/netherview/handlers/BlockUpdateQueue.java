@@ -0,0 +1,150 @@
+package me.gorgeousone.netherview.handlers;
+
+import me.gorgeousone.netherview.NetherView;
+import me.gorgeousone.netherview.blockcache.BlockCache;
+import me.gorgeousone.netherview.blockcache.BlockCacheFactory;
+import me.gorgeousone.netherview.blockcache.MirrorSection;
+import me.gorgeousone.netherview.blockcache.WorldMirror;
+import me.gorgeousone.netherview.blocktype.BlockType;
+import me.gorgeousone.netherview.threedstuff.BlockVec;
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * Collects the block changes of a tick and applies them to the block caches all at once in the following tick.
+ * Changes at the same position are coalesced (the last one wins), so explosions or growing trees next to a portal
+ * update each block only once and each viewer gets one merged update per projection instead of one per changed block.
+ */
+public class BlockUpdateQueue {
+	
+	private final NetherView main;
+	private final PortalHandler portalHandler;
+	private final ViewHandler viewHandler;
+	
+	private final Map<UUID, Map<BlockVec, BlockType>> queuedChanges;
+	private BukkitTask flushTask;
+	
+	public BlockUpdateQueue(NetherView main, PortalHandler portalHandler, ViewHandler viewHandler) {
+		
+		this.main = main;
+		this.portalHandler = portalHandler;
+		this.viewHandler = viewHandler;
+		this.queuedChanges = new HashMap<>();
+	}
+	
+	/**
+	 * Queues the new block type of a block for the next flush.
+	 */
+	public void queueChange(Block block, BlockType newBlockType) {
+		
+		World blockWorld = block.getWorld();
+		
+		if (!portalHandler.hasPortals(blockWorld)) {
+			return;
+		}
+		
+		queuedChanges.computeIfAbsent(blockWorld.getUID(), worldID -> new LinkedHashMap<>()).put(new BlockVec(block), newBlockType);
+		
+		if (flushTask == null) {
+			flushTask = Bukkit.getScheduler().runTask(main, this::flush);
+		}
+	}
+	
+	/**
+	 * Applies all queued changes to the world mirrors and block caches and sends the merged updates to the viewers.
+	 */
+	public void flush() {
+		
+		if (flushTask != null) {
+			flushTask.cancel();
+			flushTask = null;
+		}
+		
+		Map<BlockCache, Map<BlockVec, BlockType>> updatedCaches = new LinkedHashMap<>();
+		
+		for (Map.Entry<UUID, Map<BlockVec, BlockType>> entry : queuedChanges.entrySet()) {
+			
+			World world = Bukkit.getWorld(entry.getKey());
+			
+			if (world == null) {
+				continue;
+			}
+			
+			WorldMirror mirror = portalHandler.getWorldMirror(world);
+			
+			for (Map.Entry<BlockVec, BlockType> change : entry.getValue().entrySet()) {
+				applyChange(mirror, change.getKey(), change.getValue(), updatedCaches);
+			}
+		}
+		
+		queuedChanges.clear();
+		
+		updatedCaches.forEach((cache, updatedCopies) -> {
+			
+			//a block might have changed again after it was revealed by another change, so the current types are sent
+			updatedCopies.replaceAll((blockPos, blockType) -> cache.getBlockTypeAt(blockPos));
+			updatedCopies.values().removeIf(Objects::isNull);
+			
+			if (!updatedCopies.isEmpty()) {
+				viewHandler.updateProjections(cache, updatedCopies);
+			}
+		});
+	}
+	
+	private void applyChange(WorldMirror mirror, BlockVec blockPos, BlockType newBlockType, Map<BlockCache, Map<BlockVec, BlockType>> updatedCaches) {
+		
+		MirrorSection section = mirror.getSectionAt(blockPos.getX(), blockPos.getY(), blockPos.getZ());
+		
+		//blocks outside of mirrored sections are not part of any cache
+		if (section == null) {
+			return;
+		}
+		
+		BlockType oldBlockType = section.updateBlockType(blockPos.getX(), blockPos.getY(), blockPos.getZ(), newBlockType);
+		
+		//block types are interned, so the same one means nothing changed
+		if (oldBlockType == newBlockType) {
+			return;
+		}
+		
+		for (BlockCache cache : section.getCaches()) {
+			
+			if (!cache.isAffectedBy(blockPos)) {
+				continue;
+			}
+			
+			//the section is still being filled, the caches covering it are still building
+			if (oldBlockType == null) {
+				cache.addChangeWhileBuilding(blockPos);
+				continue;
+			}
+			
+			Map<BlockVec, BlockType> updatedCopies = BlockCacheFactory.updateBlockInCache(cache, blockPos, oldBlockType, newBlockType);
+			
+			if (!updatedCopies.isEmpty()) {
+				updatedCaches.computeIfAbsent(cache, key -> new HashMap<>()).putAll(updatedCopies);
+			}
+		}
+	}
+	
+	/**
+	 * Drops all queued changes.
+	 */
+	public void reset() {
+		
+		if (flushTask != null) {
+			flushTask.cancel();
+			flushTask = null;
+		}
+		
+		queuedChanges.clear();
+	}
+}
@@ -0,0 +1,195 @@
+package me.gorgeousone.netherview.handlers;
+
+import me.gorgeousone.netherview.portal.CacheState;
+import me.gorgeousone.netherview.portal.Portal;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Keeps track of the estimated memory used by the block caches and projection caches of each portal.
+ * Portals are ordered by their last use and the caches of the least recently used portals are unloaded
+ * as soon as all caches together exceed the memory budget.
+ * <p>
+ * The memory is counted while the caches are filled and released: every allocation and release of mirror sections, visibility
+ * bitsets and projection copies is charged to one portal with {@link #addBytes(Portal, long)}.
+ * Shared blocks are only charged to one portal at a time, so the counts of all portals add up to the total.
+ * <p>
+ * Only portals with ready block caches are tracked, they are added once their caches finished loading.
+ * The same order is used for expiration: the least recently used portal is always the next one to expire.
+ * So there is exactly one entry per portal and marking a portal as used only moves its entry to the end.
+ */
+public class PortalCacheManager {
+	
+	private final LongSupplier memoryBudget;
+	private final Consumer<Portal> cacheUnloader;
+	
+	//iterates from the least to the most recently used portal
+	private final LinkedHashMap<Portal, CacheUsage> cacheUsages;
+	
+	private final Map<Portal, Long> portalBytes;
+	private long totalBytes;
+	
+	/**
+	 * @param memoryBudget  supplies the count of bytes all caches together may use
+	 * @param cacheUnloader unloads all caches of a portal. It should only call back into the cache manager to free bytes.
+	 */
+	public PortalCacheManager(LongSupplier memoryBudget, Consumer<Portal> cacheUnloader) {
+		
+		this.memoryBudget = memoryBudget;
+		this.cacheUnloader = cacheUnloader;
+		this.cacheUsages = new LinkedHashMap<>(16, 0.75f, true);
+		this.portalBytes = new HashMap<>();
+	}
+	
+	/**
+	 * Marks the caches of the portal and its counter portal as most recently used and unloads caches of other portals
+	 * if the memory budget is exceeded.
+	 */
+	public void touch(Portal portal) {
+		touch(portal, portal.getCounterPortal());
+	}
+	
+	/**
+	 * Marks the caches of a viewed portal and of the counter portal it shows as most recently used and unloads caches
+	 * of other portals if the memory budget is exceeded. The caches of both portals are kept in any case.
+	 *
+	 * @param counterPortal the counter portal of the viewed portal, or null if it is not linked
+	 */
+	public void touch(Portal viewedPortal, Portal counterPortal) {
+		
+		if (counterPortal != null) {
+			markUsed(counterPortal);
+		}
+		
+		markUsed(viewedPortal);
+		
+		if (totalBytes > memoryBudget.getAsLong()) {
+			unloadLeastRecentlyUsed(viewedPortal, counterPortal);
+		}
+	}
+	
+	/**
+	 * Moves the portal to the end of the access order. Only portals with ready block caches are tracked,
+	 * the caches of other portals are either still loading or were unloaded already.
+	 */
+	private void markUsed(Portal portal) {
+		
+		if (portal.getCacheState() != CacheState.READY) {
+			return;
+		}
+		
+		//moves the entry to the end of the access order
+		CacheUsage usage = cacheUsages.get(portal);
+		
+		if (usage == null) {
+			usage = new CacheUsage();
+			cacheUsages.put(portal, usage);
+		}
+		
+		usage.lastUsed = System.currentTimeMillis();
+	}
+	
+	/**
+	 * Charges bytes of cached blocks to a portal, or frees them if negative.
+	 */
+	public void addBytes(Portal portal, long bytes) {
+		
+		if (bytes == 0) {
+			return;
+		}
+		
+		totalBytes += bytes;
+		long bytesLeft = portalBytes.merge(portal, bytes, Long::sum);
+		
+		if (bytesLeft == 0) {
+			portalBytes.remove(portal);
+		}
+	}
+	
+	/**
+	 * Stops tracking the use of the caches of a portal, e.g. after they were unloaded.
+	 * The bytes of the caches are freed when they are released.
+	 */
+	public void remove(Portal portal) {
+		cacheUsages.remove(portal);
+	}
+	
+	/**
+	 * Unloads the caches of all portals that were not used within the expiration time.
+	 */
+	public void unloadExpired(long expirationMillis) {
+		
+		long expiredBefore = System.currentTimeMillis() - expirationMillis;
+		Iterator<Map.Entry<Portal, CacheUsage>> iterator = cacheUsages.entrySet().iterator();
+		
+		while (iterator.hasNext()) {
+			
+			Map.Entry<Portal, CacheUsage> entry = iterator.next();
+			
+			//all following portals were used more recently
+			if (entry.getValue().lastUsed > expiredBefore) {
+				break;
+			}
+			
+			iterator.remove();
+			cacheUnloader.accept(entry.getKey());
+		}
+	}
+	
+	public void clear() {
+		cacheUsages.clear();
+		portalBytes.clear();
+		totalBytes = 0;
+	}
+	
+	/**
+	 * Returns the estimated count of bytes used by all caches.
+	 */
+	public long getTotalBytes() {
+		return totalBytes;
+	}
+	
+	/**
+	 * Returns the estimated count of bytes charged to the caches of a portal.
+	 */
+	public long getBytes(Portal portal) {
+		return portalBytes.getOrDefault(portal, 0L);
+	}
+	
+	public int getCachedPortalCount() {
+		return cacheUsages.size();
+	}
+	
+	/**
+	 * Unloads the caches of the least recently used portals until the memory budget is met again.
+	 * The caches of the portal that was just viewed and of the counter portal it shows are kept in any case.
+	 */
+	private void unloadLeastRecentlyUsed(Portal usedPortal, Portal counterPortal) {
+		
+		long budget = memoryBudget.getAsLong();
+		Iterator<Map.Entry<Portal, CacheUsage>> iterator = cacheUsages.entrySet().iterator();
+		
+		while (totalBytes > budget && iterator.hasNext()) {
+			
+			Map.Entry<Portal, CacheUsage> entry = iterator.next();
+			Portal portal = entry.getKey();
+			
+			if (portal == usedPortal || portal == counterPortal) {
+				continue;
+			}
+			
+			//frees the bytes of the caches while they are released
+			iterator.remove();
+			cacheUnloader.accept(portal);
+		}
+	}
+	
+	private static class CacheUsage {
+		private long lastUsed;
+	}
+}
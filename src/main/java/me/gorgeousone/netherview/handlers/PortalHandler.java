@@ -3,14 +3,22 @@ package me.gorgeousone.netherview.handlers;
 import me.gorgeousone.netherview.NetherView;
 import me.gorgeousone.netherview.blockcache.BlockCache;
 import me.gorgeousone.netherview.blockcache.BlockCacheFactory;
+import me.gorgeousone.netherview.blockcache.BlockCachePair;
+import me.gorgeousone.netherview.blockcache.BlockCacheStore;
+import me.gorgeousone.netherview.blockcache.ChunkSnapshotRegion;
 import me.gorgeousone.netherview.blockcache.ProjectionCache;
 import me.gorgeousone.netherview.blockcache.ProjectionCachePair;
+import me.gorgeousone.netherview.blockcache.ProjectionCopyPool;
 import me.gorgeousone.netherview.blockcache.Transform;
+import me.gorgeousone.netherview.blockcache.WorldMirror;
 import me.gorgeousone.netherview.blocktype.Axis;
+import me.gorgeousone.netherview.blocktype.BlockType;
+import me.gorgeousone.netherview.portal.CacheState;
 import me.gorgeousone.netherview.portal.Portal;
 import me.gorgeousone.netherview.portal.PortalLocator;
 import me.gorgeousone.netherview.threedstuff.BlockVec;
 import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
 import org.bukkit.ChatColor;
 import org.bukkit.Location;
 import org.bukkit.World;
@@ -20,30 +28,35 @@ import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.scheduler.BukkitRunnable;
 import org.bukkit.util.Vector;
 
-import java.time.Duration;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.LocalTime;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 public class PortalHandler {
 	
 	private NetherView main;
 	
 	private Map<UUID, Set<Portal>> worldsWithPortals;
-	private Map<Portal, Long> recentlyViewedPortals;
 	
 	private BukkitRunnable expirationTimer;
-	private long cacheExpirationDuration;
 	
 	// Virtual thread executor for async cache generation (Java 21)
 	private final ExecutorService cacheExecutor;
@@ -51,31 +64,73 @@ public class PortalHandler {
 	// Phase 3: Spatial indexing for O(1) portal lookups
 	private final SpatialPortalIndex spatialIndex;
 	
-	// Phase 3: Priority queue for O(1) next-expiring cache access
-	private final PriorityQueue<CacheExpirationEntry> expirationQueue;
+	// Fills the block caches layer by layer
+	private final ProgressiveCacheBuilder cacheBuilder;
+	
+	// Stores built block caches on disk so they can be reused after restarts
+	private final BlockCacheStore cacheStore;
+	
+	// Unloads the caches of the least recently used portals when they use too much memory
+	private final PortalCacheManager cacheManager;
+	
+	// Rotated block copies shared between projection caches of the same counter portal
+	private final ProjectionCopyPool projectionCopyPool;
+	
+	// Chunk sections of each world shared by all block caches covering them
+	private final Map<UUID, WorldMirror> worldMirrors;
+	
+	// Portals linked to each counter portal, maintained when links are added or removed
+	private final Map<Portal, Set<Portal>> incomingLinks;
+	
+	// Block caches of evicted portals that are still being written to disk
+	private final Map<Portal, CompletableFuture<Void>> cacheSaves;
+	
+	// Portals waiting for the block caches of their counter portal to create their projections
+	private final Set<Portal> projectionLoads;
+	
+	private Consumer<ProjectionCache> projectionRemovalListener;
 	
 	public PortalHandler(NetherView main) {
 		
 		this.main = main;
 		
 		worldsWithPortals = new HashMap<>();
-		recentlyViewedPortals = new HashMap<>();
-		cacheExpirationDuration = Duration.ofMinutes(10).toMillis();
 		
 		// Initialize virtual thread executor for cache generation
 		cacheExecutor = Executors.newVirtualThreadPerTaskExecutor();
 		
 		// Phase 3 optimizations
 		spatialIndex = new SpatialPortalIndex();
-		expirationQueue = new PriorityQueue<>();
+		cacheManager = new PortalCacheManager(main::getCacheMemoryBudget, this::unloadCaches);
+		projectionCopyPool = new ProjectionCopyPool(cacheManager::addBytes);
+		cacheBuilder = new ProgressiveCacheBuilder(main, cacheExecutor);
+		cacheStore = new BlockCacheStore(new File(main.getDataFolder(), "block-caches"));
+		worldMirrors = new HashMap<>();
+		incomingLinks = new HashMap<>();
+		cacheSaves = new HashMap<>();
+		projectionLoads = new HashSet<>();
+		
+		cacheBuilder.setFailureListener(this::dropFailedCaches);
 	}
 	
 	public void reset() {
 		
+		//evicted caches have to be written before the store is used again
+		CompletableFuture.allOf(cacheSaves.values().toArray(new CompletableFuture[0])).exceptionally(error -> null).join();
+		cacheSaves.clear();
+		
+		for (Set<Portal> portalsInWorld : worldsWithPortals.values()) {
+			portalsInWorld.forEach(this::saveBlockCaches);
+		}
+		
 		worldsWithPortals.clear();
-		recentlyViewedPortals.clear();
 		spatialIndex.clear();
-		expirationQueue.clear();
+		projectionCopyPool.clear();
+		cacheBuilder.reset();
+		cacheManager.clear();
+		worldMirrors.clear();
+		incomingLinks.clear();
+		projectionLoads.clear();
 	}
 	
 	/**
@@ -83,9 +138,25 @@ public class PortalHandler {
 	 * Should be called when the plugin is disabled.
 	 */
 	public void shutdown() {
+		cacheBuilder.shutdown();
 		cacheExecutor.shutdown();
 	}
 	
+	/**
+	 * Sets a listener that is called with the visible blocks of each layer that is added to a block cache.
+	 */
+	public void setCacheLayerListener(BiConsumer<BlockCache, Map<BlockVec, BlockType>> layerListener) {
+		cacheBuilder.setLayerListener(layerListener);
+	}
+	
+	/**
+	 * Sets a listener that is called with each projection cache that is dropped because its block caches were unloaded or
+	 * the portal was unlinked.
+	 */
+	public void setProjectionRemovalListener(Consumer<ProjectionCache> projectionRemovalListener) {
+		this.projectionRemovalListener = projectionRemovalListener;
+	}
+	
 	public Set<Portal> getPortals(World world) {
 		// Phase 3: Use spatial index for portal retrieval
 		return spatialIndex.getPortals(world);
@@ -111,10 +182,11 @@ public class PortalHandler {
 	}
 	
 	/**
-	 * Returns the count of portals that have been viewed in the last 10 minutes.
+	 * Returns the count of portals with ready block caches, which were used within the cache expiration time
+	 * and not unloaded to meet the memory budget.
 	 */
 	public Integer getRecentlyViewedPortalsCount() {
-		return recentlyViewedPortals.size();
+		return cacheManager.getCachedPortalCount();
 	}
 	
 	/**
@@ -167,43 +239,19 @@ public class PortalHandler {
 	
 	/**
 	 * Returns a Set of all portals connected with their projections to the passed portal. Returns an empty set if none was found.
+	 * The Set is a read only view of the link index, so it has to be copied before links are changed while iterating it.
 	 */
 	public Set<Portal> getPortalsLinkedTo(Portal portal) {
 		
-		Set<Portal> linkedToPortals = new HashSet<>();
-		
-		for (UUID worldID : worldsWithPortals.keySet()) {
-			for (Portal secondPortal : worldsWithPortals.get(worldID)) {
-				
-				if (secondPortal == portal) {
-					continue;
-				}
-				
-				if (secondPortal.isLinked() && secondPortal.getCounterPortal() == portal) {
-					linkedToPortals.add(secondPortal);
-				}
-			}
-		}
-		
-		return linkedToPortals;
+		Set<Portal> linkedToPortals = incomingLinks.get(portal);
+		return linkedToPortals != null ? Collections.unmodifiableSet(linkedToPortals) : Collections.emptySet();
 	}
 	
 	/**
-	 * Returns all block caches (2 for each portal) of all portals in specified world.
+	 * Returns the mirrored chunk sections of a world that the block caches of the world read their blocks from.
 	 */
-	public Set<BlockCache> getBlockCaches(World world) {
-		
-		Set<BlockCache> caches = new HashSet<>();
-		
-		for (Portal portal : getPortals(world)) {
-			
-			if (portal.blockCachesAreLoaded()) {
-				caches.add(portal.getFrontCache());
-				caches.add(portal.getBackCache());
-			}
-		}
-		
-		return caches;
+	public WorldMirror getWorldMirror(World world) {
+		return worldMirrors.computeIfAbsent(world.getUID(), worldID -> new WorldMirror(cacheManager::addBytes));
 	}
 	
 	/**
@@ -250,68 +298,209 @@ public class PortalHandler {
 		return portal;
 	}
 	
-	private void loadBlockCachesOf(Portal portal) {
+	/**
+	 * Returns the block caches of the portal once they are ready. If they are not loaded yet, the chunks around the portal
+	 * are loaded with the async chunk API and the caches are set to the portal on the main thread. Requests while the caches
+	 * are loading join the same load. Caches are read from disk if they are still valid, otherwise they are filled
+	 * progressively by the cache builder.
+	 */
+	public CompletableFuture<BlockCachePair> loadBlockCachesOf(Portal portal) {
+		
+		switch (portal.getCacheState()) {
+			case READY:
+				return CompletableFuture.completedFuture(portal.getBlockCaches());
+			case LOADING:
+				return portal.getCacheLoad();
+			case EVICTING:
+				return CompletableFuture.failedFuture(new IllegalStateException("Block caches of portal " + portal + " are still being stored."));
+			default:
+				break;
+		}
+		
+		if (!portal.transitionCacheState(CacheState.UNLOADED, CacheState.LOADING)) {
+			return loadBlockCachesOf(portal);
+		}
+		
+		int viewDist = main.getPortalProjectionDist();
+		BlockType borderType = main.getWorldBorderBlockType(portal.getWorld().getEnvironment());
+		
+		Executor mainThreadExecutor = Bukkit.getScheduler().getMainThreadExecutor(main);
 		
-		// Use virtual threads for async cache generation (Java 21 optimization)
-		cacheExecutor.submit(() -> {
-			portal.setBlockCaches(BlockCacheFactory.createBlockCaches(
-					portal,
-					main.getPortalProjectionDist(),
-					main.getWorldBorderBlockType(portal.getWorld().getEnvironment())));
+		CompletableFuture<BlockCachePair> cacheLoad = BlockCacheFactory.loadChunksAround(portal, viewDist).thenApplyAsync(chunks -> {
 			
-			addPortalToExpirationTimer(portal);
+			//the portal might have been removed in the meantime
+			if (!getPortals(portal.getWorld()).contains(portal)) {
+				throw new CancellationException("Portal " + portal + " was removed.");
+			}
+			
+			BlockCachePair caches = BlockCacheFactory.createBlockCaches(portal, viewDist, borderType, getWorldMirror(portal.getWorld()));
+			return new CacheRestore(caches, chunks, cacheStore.getChunkStamp(caches.front()), cacheStore.getChunkStamp(caches.back()), null, null);
+			
+		}, mainThreadExecutor).thenApplyAsync(restore -> {
+			
+			//reading and decoding the files is done on the cache executor, so the main thread does not wait for the disk
+			return new CacheRestore(restore.caches(), restore.chunks(), restore.frontStamp(), restore.backStamp(),
+					readBlockCache(restore.caches().front(), true, restore.frontStamp()),
+					readBlockCache(restore.caches().back(), false, restore.backStamp()));
+			
+		}, cacheExecutor).thenApplyAsync(restore -> {
+			
+			BlockCachePair caches = restore.caches();
+			List<BlockCache> cachesToBuild = new ArrayList<>();
+			
+			//the caches already acquired their mirror sections, so they have to be released if anything goes wrong
+			try {
+				if (!getPortals(portal.getWorld()).contains(portal)) {
+					throw new CancellationException("Portal " + portal + " was removed.");
+				}
+				
+				if (!cacheStore.restore(caches.front(), restore.frontBlocks(), restore.frontStamp())) {
+					cachesToBuild.add(caches.front());
+				}
+				if (!cacheStore.restore(caches.back(), restore.backBlocks(), restore.backStamp())) {
+					cachesToBuild.add(caches.back());
+				}
+				
+				if (!cachesToBuild.isEmpty()) {
+					cacheBuilder.build(cachesToBuild, ChunkSnapshotRegion.capture(portal.getWorld(), restore.chunks()));
+				}
+				
+			} catch (RuntimeException e) {
+				caches.front().release();
+				caches.back().release();
+				throw e;
+			}
 			
 			if (main.debugMessagesEnabled()) {
-				Bukkit.getConsoleSender().sendMessage(ChatColor.DARK_GRAY + "[Debug] Loaded block data for portal " + portal.toString());
+				Bukkit.getConsoleSender().sendMessage(ChatColor.DARK_GRAY + "[Debug] Loaded " + (2 - cachesToBuild.size())
+				                                      + " stored block caches and building " + cachesToBuild.size() + " for portal " + portal.toString());
+			}
+			
+			return caches;
+			
+		}, mainThreadExecutor).whenComplete((caches, error) -> {
+			
+			//runs on the main thread as well, before anything that waits for the returned future
+			
+			portal.setCacheLoad(null);
+			
+			if (error != null) {
+				
+				portal.transitionCacheState(CacheState.LOADING, CacheState.UNLOADED);
+				
+				if (!(error.getCause() instanceof CancellationException)) {
+					main.getLogger().warning("Could not load block data for portal " + portal.toString() + ": " + error.getMessage());
+				}
+				return;
+			}
+			
+			//the portal was removed in the meantime
+			if (!portal.transitionCacheState(CacheState.LOADING, CacheState.READY)) {
+				caches.front().release();
+				caches.back().release();
+				return;
 			}
+			
+			portal.setBlockCaches(caches);
+			addPortalToExpirationTimer(portal);
 		});
+		
+		portal.setCacheLoad(cacheLoad);
+		return cacheLoad;
 	}
 	
-	public void loadProjectionCachesOf(Portal portal) {
+	/**
+	 * Reads the stored blocks of a cache if there are any for the chunk stamp. Can be called from any thread.
+	 */
+	private BlockCacheStore.StoredBlocks readBlockCache(BlockCache cache, boolean isFrontCache, Long chunkStamp) {
 		
-		if (!portal.isLinked()) {
-			return;
+		//the chunks around the cache were not loaded
+		if (chunkStamp == null) {
+			return null;
 		}
 		
-		Portal counterPortal = portal.getCounterPortal();
-		Transform linkTransform = calculateLinkTransform(portal, counterPortal);
+		try {
+			return cacheStore.read(cache, isFrontCache, chunkStamp);
+			
+		} catch (IOException e) {
+			main.getLogger().warning("Could not read stored block data for portal " + cache.getPortal().toString() + ": " + e.getMessage());
+			return null;
+		}
+	}
+	
+	/**
+	 * Writes the block caches of a portal to disk if they are built and changed since they were last stored.
+	 */
+	private void saveBlockCaches(Portal portal) {
 		
-		if (!counterPortal.blockCachesAreLoaded()) {
-			loadBlockCachesOf(counterPortal);
+		if (!portal.blockCachesAreLoaded()) {
+			return;
 		}
 		
-		BlockCache frontCache = counterPortal.getFrontCache();
-		BlockCache backCache = counterPortal.getBackCache();
+		try {
+			cacheStore.save(portal.getFrontCache(), true);
+			cacheStore.save(portal.getBackCache(), false);
+			
+		} catch (IOException e) {
+			main.getLogger().warning("Could not store block data for portal " + portal.toString() + ": " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Creates the projection caches of a portal once the block caches of its counter portal are ready.
+	 * If they are ready already the projections are created right away. Further requests while the portal is waiting are ignored.
+	 */
+	public void loadProjectionCachesOf(Portal portal) {
+		
+		if (!portal.isLinked() || !projectionLoads.add(portal)) {
+			return;
+		}
 		
-		//the projections caches are switching positions because of the transform
-		ProjectionCache frontProjection = new ProjectionCache(portal, backCache, linkTransform);
-		ProjectionCache backProjection = new ProjectionCache(portal, frontCache, linkTransform);
+		Portal counterPortal = portal.getCounterPortal();
 		
-		portal.setProjectionCaches(new ProjectionCachePair(frontProjection, backProjection));
-		addPortalToExpirationTimer(portal);
+		loadBlockCachesOf(counterPortal).whenComplete((caches, error) -> {
+			
+			projectionLoads.remove(portal);
+			
+			if (error != null) {
+				return;
+			}
+			
+			//the projections might have been created by an earlier request or the portal was linked to another portal meanwhile
+			if (portal.projectionsAreLoaded() || portal.getCounterPortal() != counterPortal ||
+			    counterPortal.getCacheState() != CacheState.READY) {
+				return;
+			}
+			
+			Transform linkTransform = calculateLinkTransform(portal, counterPortal);
+			
+			//the projections caches are switching positions because of the transform
+			ProjectionCopyPool copyPool = main.useZeroCopyProjections() ? null : projectionCopyPool;
+			ProjectionCache frontProjection = new ProjectionCache(portal, caches.back(), linkTransform, copyPool);
+			ProjectionCache backProjection = new ProjectionCache(portal, caches.front(), linkTransform, copyPool);
+			
+			portal.setProjectionCaches(new ProjectionCachePair(frontProjection, backProjection));
+			
+			//the projections are dropped together with the block caches of the counter portal, which are tracked already
+			updateExpirationTime(portal);
+		});
 	}
 	
 	private void addPortalToExpirationTimer(Portal portal) {
-		long now = System.currentTimeMillis();
-		recentlyViewedPortals.put(portal, now);
 		
-		// Phase 3: Add to priority queue for O(1) next-expiring access
-		long expirationTime = now + cacheExpirationDuration;
-		expirationQueue.offer(new CacheExpirationEntry(portal, expirationTime));
+		cacheManager.touch(portal);
 		
 		if (expirationTimer == null) {
 			startCacheExpirationTimer();
 		}
 	}
 	
+	/**
+	 * Marks the caches of a viewed portal and its counter portal as used, which postpones their expiration.
+	 * Both are kept if caches of other portals have to be unloaded to meet the memory budget.
+	 */
 	public void updateExpirationTime(Portal portal) {
-		long now = System.currentTimeMillis();
-		recentlyViewedPortals.put(portal, now);
-		
-		// Phase 3: Add updated expiration to priority queue
-		// Note: Old entries will be filtered out when processed
-		long expirationTime = now + cacheExpirationDuration;
-		expirationQueue.offer(new CacheExpirationEntry(portal, expirationTime));
+		cacheManager.touch(portal, portal.getCounterPortal());
 	}
 	
 	/**
@@ -319,25 +508,56 @@ public class PortalHandler {
 	 */
 	public void removePortal(Portal portal) {
 		
-		Set<Portal> linkedToPortals = getPortalsLinkedTo(portal);
+		//copied because the links are removed while iterating
+		Set<Portal> linkedToPortals = new HashSet<>(getPortalsLinkedTo(portal));
 		
 		if (main.debugMessagesEnabled()) {
 			Bukkit.getConsoleSender().sendMessage(ChatColor.DARK_GRAY + "[Debug] Removing portal at " + portal.toString());
 			Bukkit.getConsoleSender().sendMessage(ChatColor.DARK_GRAY + "[Debug] Un-linking " + linkedToPortals.size() + " portal projections.");
 		}
 		
-		for (Portal linkedPortal : getPortalsLinkedTo(portal)) {
-			linkedPortal.removeLink();
+		for (Portal linkedPortal : linkedToPortals) {
+			removeLink(linkedPortal);
 		}
 		
-		portal.removeLink();
+		removeLink(portal);
+		
+		CompletableFuture<Void> cacheSave = cacheSaves.get(portal);
+		
+		//evicted caches that are still being written are deleted afterwards
+		if (cacheSave != null) {
+			cacheSave.whenComplete((result, error) -> deleteStoredCaches(portal));
+		} else {
+			deleteStoredCaches(portal);
+		}
+		
+		cacheManager.remove(portal);
+		portal.remove();
+		removeProjectionCaches(portal);
+		
+		//a running load drops its caches when it notices that the portal was removed
+		portal.setCacheLoad(null);
+		
+		if (portal.transitionCacheState(CacheState.READY, CacheState.EVICTING)) {
+			dropBlockCaches(portal);
+			portal.transitionCacheState(CacheState.EVICTING, CacheState.UNLOADED);
+		} else {
+			portal.transitionCacheState(CacheState.LOADING, CacheState.UNLOADED);
+		}
 		
-		recentlyViewedPortals.remove(portal);
 		worldsWithPortals.get(portal.getWorld().getUID()).remove(portal);
 		
 		// Phase 3: Remove from spatial index
 		spatialIndex.removePortal(portal);
-		// Note: Expired entries in priority queue will be filtered when processed
+	}
+	
+	private void deleteStoredCaches(Portal portal) {
+		
+		try {
+			cacheStore.delete(portal);
+		} catch (IOException e) {
+			main.getLogger().warning("Could not delete stored block data for portal " + portal.toString() + ": " + e.getMessage());
+		}
 	}
 	
 	/**
@@ -356,7 +576,9 @@ public class PortalHandler {
 			throw new IllegalStateException(ChatColor.GRAY + "" + ChatColor.ITALIC + "These portals are not the same size.");
 		}
 		
+		removeLink(portal);
 		portal.setLinkedTo(counterPortal);
+		incomingLinks.computeIfAbsent(counterPortal, key -> new HashSet<>()).add(portal);
 		
 		if (main.debugMessagesEnabled()) {
 			Bukkit.getConsoleSender().sendMessage(ChatColor.DARK_GRAY + "[Debug] Linked portal "
@@ -365,6 +587,30 @@ public class PortalHandler {
 		}
 	}
 	
+	/**
+	 * Removes the link of a portal to it's counter portal.
+	 */
+	public void removeLink(Portal portal) {
+		
+		Portal counterPortal = portal.getCounterPortal();
+		
+		if (counterPortal != null) {
+			
+			Set<Portal> linkedToPortals = incomingLinks.get(counterPortal);
+			
+			if (linkedToPortals != null) {
+				linkedToPortals.remove(portal);
+				
+				if (linkedToPortals.isEmpty()) {
+					incomingLinks.remove(counterPortal);
+				}
+			}
+		}
+		
+		removeProjectionCaches(portal);
+		portal.removeLink();
+	}
+	
 	public void savePortals(FileConfiguration portalConfig) {
 		
 		portalConfig.set("portal-locations", null);
@@ -483,6 +729,128 @@ public class PortalHandler {
 		return linkTransform;
 	}
 	
+	/**
+	 * Drops and stores the block caches and projection caches of a portal.
+	 * Projections of other portals showing the block caches are dropped as well, they will be recreated when viewed again.
+	 */
+	private void unloadCaches(Portal portal) {
+		
+		removeProjectionCaches(portal);
+		
+		//caches that are still loading will be tracked again when they are ready
+		if (!portal.transitionCacheState(CacheState.READY, CacheState.EVICTING)) {
+			return;
+		}
+		
+		BlockCachePair caches = portal.getBlockCaches();
+		dropBlockCaches(portal);
+		saveDroppedCaches(portal, caches);
+		
+		if (main.debugMessagesEnabled()) {
+			Bukkit.getConsoleSender().sendMessage(ChatColor.DARK_GRAY + "[Debug] Removed cached blocks of portal " + portal.toString());
+		}
+	}
+	
+	/**
+	 * Drops the block caches of a portal after a part of them could not be copied, instead of leaving them half built.
+	 * They are loaded again the next time the portal is viewed.
+	 */
+	private void dropFailedCaches(BlockCache cache) {
+		
+		Portal portal = cache.getPortal();
+		removeProjectionCaches(portal);
+		
+		if (!portal.transitionCacheState(CacheState.READY, CacheState.EVICTING)) {
+			return;
+		}
+		
+		cacheManager.remove(portal);
+		dropBlockCaches(portal);
+		portal.transitionCacheState(CacheState.EVICTING, CacheState.UNLOADED);
+		main.getLogger().warning("Dropped incomplete block caches of portal " + portal.toString() + ".");
+	}
+	
+	/**
+	 * Drops the block caches of a portal and the projections of other portals showing them.
+	 */
+	private void dropBlockCaches(Portal portal) {
+		
+		for (Portal linkedPortal : getPortalsLinkedTo(portal)) {
+			removeProjectionCaches(linkedPortal);
+		}
+		
+		releaseBlockCaches(portal);
+	}
+	
+	/**
+	 * Writes the dropped block caches of a portal to disk on the cache executor, so the main thread does not wait for the disk.
+	 * The caches stay evicting until they are written, so they cannot be read from disk before.
+	 */
+	private void saveDroppedCaches(Portal portal, BlockCachePair caches) {
+		
+		List<BlockCacheStore.CacheSnapshot> snapshots = new ArrayList<>();
+		
+		for (BlockCache cache : List.of(caches.front(), caches.back())) {
+			
+			BlockCacheStore.CacheSnapshot snapshot = cacheStore.takeSnapshot(cache, cache == caches.front());
+			
+			if (snapshot != null) {
+				snapshots.add(snapshot);
+			}
+		}
+		
+		if (snapshots.isEmpty()) {
+			portal.transitionCacheState(CacheState.EVICTING, CacheState.UNLOADED);
+			return;
+		}
+		
+		CompletableFuture<Void> cacheSave = CompletableFuture.runAsync(() -> {
+			
+			for (BlockCacheStore.CacheSnapshot snapshot : snapshots) {
+				try {
+					cacheStore.write(snapshot);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		}, cacheExecutor);
+		
+		cacheSaves.put(portal, cacheSave);
+		
+		cacheSave.whenCompleteAsync((result, error) -> {
+			
+			cacheSaves.remove(portal, cacheSave);
+			portal.transitionCacheState(CacheState.EVICTING, CacheState.UNLOADED);
+			
+			if (error != null) {
+				main.getLogger().warning("Could not store block data for portal " + portal.toString() + ": " + error.getCause().getMessage());
+			}
+		}, Bukkit.getScheduler().getMainThreadExecutor(main));
+	}
+	
+	/**
+	 * Drops the projection caches of a portal and tells the listener about them.
+	 */
+	private void removeProjectionCaches(Portal portal) {
+		
+		if (portal.projectionsAreLoaded() && projectionRemovalListener != null) {
+			projectionRemovalListener.accept(portal.getFrontProjection());
+			projectionRemovalListener.accept(portal.getBackProjection());
+		}
+		
+		portal.removeProjectionCaches();
+	}
+	
+	/**
+	 * Drops the block caches of a portal and releases their mirror sections.
+	 */
+	private void releaseBlockCaches(Portal portal) {
+		
+		portal.getFrontCache().release();
+		portal.getBackCache().release();
+		portal.removeBlockCaches();
+	}
+	
 	/**
 	 * Starts a scheduler that handles the removal of block caches (and projection caches) that weren't used for a certain expiration time.
 	 */
@@ -495,55 +863,17 @@ public class PortalHandler {
 		expirationTimer = new BukkitRunnable() {
 			@Override
 			public void run() {
-				// Phase 3: Use priority queue for O(1) next-expiring cache access
-				long now = System.currentTimeMillis();
-				
-				// Process all expired entries from the priority queue
-				while (!expirationQueue.isEmpty()) {
-					CacheExpirationEntry entry = expirationQueue.peek();
-					
-					// Stop if next entry hasn't expired yet
-					if (entry.expirationTime() > now) {
-						break;
-					}
-					
-					// Remove from queue
-					expirationQueue.poll();
-					Portal portal = entry.portal();
-					
-					// Check if this entry is still valid (not updated or removed)
-					Long lastViewTime = recentlyViewedPortals.get(portal);
-					if (lastViewTime == null) {
-						// Portal was removed, skip
-						continue;
-					}
-					
-					long actualExpirationTime = lastViewTime + cacheExpirationDuration;
-					if (actualExpirationTime > now) {
-						// Portal was updated, skip this old entry
-						continue;
-					}
-					
-					// Remove expired cache
-					portal.removeProjectionCaches();
-					portal.removeBlockCaches();
-					recentlyViewedPortals.remove(portal);
-					
-					if (main.debugMessagesEnabled()) {
-						Bukkit.getConsoleSender().sendMessage(ChatColor.DARK_GRAY + "[Debug] Removed cached blocks of portal " + portal.toString());
-					}
-				}
+				cacheManager.unloadExpired(main.getCacheExpirationMillis());
 				
 				// Stop timer if no more portals to expire
-				if (recentlyViewedPortals.isEmpty()) {
+				if (cacheManager.getCachedPortalCount() == 0) {
 					this.cancel();
 					expirationTimer = null;
-					expirationQueue.clear();
 				}
 			}
 		};
 		
-		expirationTimer.runTaskTimerAsynchronously(main, ticksTillNextMinute(), 10 * 20);
+		expirationTimer.runTaskTimer(main, ticksTillNextMinute(), 10 * 20);
 	}
 	
 	private long ticksTillNextMinute() {
@@ -552,4 +882,14 @@ public class PortalHandler {
 		LocalTime nextMinute = now.truncatedTo(ChronoUnit.MINUTES).plusMinutes(1);
 		return now.until(nextMinute, ChronoUnit.MILLIS) / 50;
 	}
-}
\ No newline at end of file
+	
+	/**
+	 * The block caches of a portal being loaded, with the chunk stamps and stored blocks read for them.
+	 */
+	private record CacheRestore(BlockCachePair caches,
+	                            List<Chunk> chunks,
+	                            Long frontStamp,
+	                            Long backStamp,
+	                            BlockCacheStore.StoredBlocks frontBlocks,
+	                            BlockCacheStore.StoredBlocks backBlocks) {}
+}
@@ -0,0 +1,207 @@
+package me.gorgeousone.netherview.handlers;
+
+import me.gorgeousone.netherview.NetherView;
+import me.gorgeousone.netherview.blockcache.BlockCache;
+import me.gorgeousone.netherview.blockcache.BlockCacheFactory;
+import me.gorgeousone.netherview.blockcache.CacheLayer;
+import me.gorgeousone.netherview.blockcache.ChunkSnapshotRegion;
+import me.gorgeousone.netherview.blockcache.MirrorSection;
+import me.gorgeousone.netherview.blocktype.BlockType;
+import me.gorgeousone.netherview.portal.Portal;
+import me.gorgeousone.netherview.threedstuff.BlockVec;
+import org.bukkit.Bukkit;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Builds block caches layer by layer, starting with the layers closest to the portal.
+ * The mirror sections around each layer and the visibility of the layers (x or z slabs of the caches) are copied from
+ * chunk snapshots in parallel on the cache executor. They are added in order on the main thread within a time budget per tick,
+ * so viewers can already see the nearest layers while the deeper ones stream in.
+ * <p>
+ * If any section or layer of a cache cannot be copied the cache is reported as failed, so it can be dropped as a whole
+ * instead of staying half built.
+ */
+public class ProgressiveCacheBuilder {
+	
+	private final NetherView main;
+	private final ExecutorService executor;
+	
+	//sections and layers in the order they have to be added
+	private final Queue<PendingCopy<?>> pendingCopies;
+	private BiConsumer<BlockCache, Map<BlockVec, BlockType>> layerListener;
+	private Consumer<BlockCache> failureListener;
+	private BukkitTask addLayersTask;
+	
+	public ProgressiveCacheBuilder(NetherView main, ExecutorService executor) {
+		
+		this.main = main;
+		this.executor = executor;
+		this.pendingCopies = new ArrayDeque<>();
+	}
+	
+	/**
+	 * Sets a listener that is called on the main thread with the visible blocks of each layer added to a cache.
+	 */
+	public void setLayerListener(BiConsumer<BlockCache, Map<BlockVec, BlockType>> layerListener) {
+		this.layerListener = layerListener;
+	}
+	
+	/**
+	 * Sets a listener that is called on the main thread with caches that could not be built completely.
+	 */
+	public void setFailureListener(Consumer<BlockCache> failureListener) {
+		this.failureListener = failureListener;
+	}
+	
+	/**
+	 * Starts copying the layers of the empty caches. Has to be called on the main thread.
+	 */
+	public void build(List<BlockCache> caches, ChunkSnapshotRegion blocks) {
+		
+		int maxLayerCount = caches.stream().mapToInt(BlockCache::getLayerCount).max().orElse(0);
+		
+		//the snapshots are read only, so all sections and layers of all caches can be copied at the same time.
+		//they are submitted nearest first and alternating between the caches so both sides of the portal fill up evenly
+		for (int layer = 0; layer < maxLayerCount; layer++) {
+			for (BlockCache cache : caches) {
+				
+				if (layer >= cache.getLayerCount()) {
+					continue;
+				}
+				
+				//sections shared with other caches are only copied once
+				for (MirrorSection section : cache.getSectionsToFill(layer)) {
+					
+					section.setFillPending(true);
+					pendingCopies.add(new PendingCopy<>(
+							CompletableFuture.supplyAsync(() -> MirrorSection.copyBlocks(
+									section.getSectionX(), section.getSectionY(), section.getSectionZ(), blocks), executor),
+							section::fill,
+							() -> section.setFillPending(false)));
+				}
+				
+				int layerToCopy = layer;
+				pendingCopies.add(new PendingCopy<>(
+						CompletableFuture.supplyAsync(() -> BlockCacheFactory.copyLayer(cache, layerToCopy, blocks), executor),
+						copiedLayer -> addLayer(cache, copiedLayer),
+						() -> failCache(cache)));
+			}
+		}
+		
+		if (addLayersTask == null && !pendingCopies.isEmpty()) {
+			addLayersTask = Bukkit.getScheduler().runTaskTimer(main, this::addCopiedLayers, 1, 1);
+		}
+	}
+	
+	/**
+	 * Adds copied sections and layers until the time budget for this tick is used up.
+	 * Stops the task once all copies are added.
+	 */
+	private void addCopiedLayers() {
+		
+		long deadline = System.nanoTime() + main.getCacheBuildMillisPerTick() * 1_000_000L;
+		
+		while (System.nanoTime() < deadline) {
+			
+			PendingCopy<?> pendingCopy = pendingCopies.peek();
+			
+			if (pendingCopy == null) {
+				stopAddingLayers();
+				return;
+			}
+			
+			//layers have to be added in order after their sections, so wait if the next copy is not done yet
+			if (!pendingCopy.copy().isDone()) {
+				return;
+			}
+			
+			pendingCopies.poll();
+			
+			try {
+				pendingCopy.add();
+				
+			} catch (CompletionException e) {
+				pendingCopy.onFailure().run();
+				main.getLogger().warning("Could not copy block data for portal caches: " + e.getCause().getMessage());
+			}
+		}
+	}
+	
+	private void addLayer(BlockCache cache, CacheLayer layer) {
+		
+		//skip layers of caches that were dropped in the meantime
+		if (!isCacheInUse(cache)) {
+			return;
+		}
+		
+		//a section around the layer or an earlier layer could not be copied
+		if (layer.getLayer() != cache.getBuiltLayerCount() || !cache.areSectionsFilled(layer.getLayer())) {
+			failCache(cache);
+			return;
+		}
+		
+		Map<BlockVec, BlockType> visibleBlocks = cache.addLayer(layer);
+		
+		if (layerListener != null && !visibleBlocks.isEmpty()) {
+			layerListener.accept(cache, visibleBlocks);
+		}
+	}
+	
+	private void failCache(BlockCache cache) {
+		
+		if (isCacheInUse(cache) && failureListener != null) {
+			failureListener.accept(cache);
+		}
+	}
+	
+	private boolean isCacheInUse(BlockCache cache) {
+		
+		Portal portal = cache.getPortal();
+		return portal.blockCachesAreLoaded() && (portal.getFrontCache() == cache || portal.getBackCache() == cache);
+	}
+	
+	/**
+	 * Drops all copied sections and layers that were not added yet. The caches they belong to are reported as failed.
+	 */
+	public void reset() {
+		
+		for (PendingCopy<?> pendingCopy : pendingCopies) {
+			pendingCopy.onFailure().run();
+		}
+		
+		pendingCopies.clear();
+	}
+	
+	public void shutdown() {
+		reset();
+		stopAddingLayers();
+	}
+	
+	private void stopAddingLayers() {
+		
+		if (addLayersTask != null) {
+			addLayersTask.cancel();
+			addLayersTask = null;
+		}
+	}
+	
+	/**
+	 * A copy running on the cache executor and how to add it on the main thread, or clean up if it failed or was dropped.
+	 */
+	private record PendingCopy<T>(CompletableFuture<T> copy, Consumer<T> onCopied, Runnable onFailure) {
+		
+		private void add() {
+			onCopied.accept(copy.join());
+		}
+	}
+}
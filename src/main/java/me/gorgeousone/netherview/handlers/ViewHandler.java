@@ -3,6 +3,8 @@ package me.gorgeousone.netherview.handlers;
 import me.gorgeousone.netherview.DisplayUtils;
 import me.gorgeousone.netherview.NetherView;
 import me.gorgeousone.netherview.blockcache.BlockCache;
+import me.gorgeousone.netherview.blockcache.CacheLayout;
+import me.gorgeousone.netherview.blockcache.CornerGrid;
 import me.gorgeousone.netherview.blockcache.ProjectionCache;
 import me.gorgeousone.netherview.blockcache.Transform;
 import me.gorgeousone.netherview.blocktype.Axis;
@@ -12,14 +14,17 @@ import me.gorgeousone.netherview.threedstuff.AxisAlignedRect;
 import me.gorgeousone.netherview.threedstuff.BlockVec;
 import me.gorgeousone.netherview.threedstuff.viewfrustum.ViewFrustum;
 import me.gorgeousone.netherview.threedstuff.viewfrustum.ViewFrustumFactory;
-import org.bukkit.Bukkit;
 import org.bukkit.Location;
 import org.bukkit.Material;
 import org.bukkit.block.Block;
 import org.bukkit.entity.Player;
 import org.bukkit.util.Vector;
 
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
@@ -30,54 +35,56 @@ public class ViewHandler {
 	private NetherView main;
 	private PortalHandler portalHandler;
 	
-	private Map<UUID, Portal> viewedPortals;
-	private Map<UUID, ProjectionCache> viewedProjections;
-	private Map<UUID, Map<BlockVec, BlockType>> playerViewSessions;
+	private Map<UUID, ViewSession> viewSessions;
+	
+	//the sessions of the players currently viewing each projection
+	private Map<ProjectionCache, Set<ViewSession>> projectionViewers;
 	
 	public ViewHandler(NetherView main, PortalHandler portalHandler) {
 		
 		this.main = main;
 		this.portalHandler = portalHandler;
 		
-		viewedProjections = new HashMap<>();
-		playerViewSessions = new HashMap<>();
-		viewedPortals = new HashMap<>();
+		viewSessions = new HashMap<>();
+		projectionViewers = new HashMap<>();
 	}
 	
 	public void reset() {
 		
-		for (Player player : Bukkit.getOnlinePlayers()) {
-			if (hasViewSession(player)) {
-				hideViewSession(player);
-			}
+		for (ViewSession session : viewSessions.values()) {
+			DisplayUtils.removeFakeBlocks(session.getPlayer(), session.getShownBlocks());
 		}
 		
-		viewedPortals.clear();
-		viewedProjections.clear();
-		playerViewSessions.clear();
+		viewSessions.clear();
+		projectionViewers.clear();
 	}
 	
 	/**
 	 * Returns a Map of BlockTypes linked to their location that are currently displayed with fake blocks
-	 * to a player.
+	 * to a player. Returns an empty Map if the player has no view session.
 	 */
 	public Map<BlockVec, BlockType> getViewSession(Player player) {
 		
-		UUID uuid = player.getUniqueId();
-		
-		playerViewSessions.putIfAbsent(uuid, new HashMap<>());
-		return playerViewSessions.get(uuid);
+		ViewSession session = viewSessions.get(player.getUniqueId());
+		return session != null ? session.getShownBlocks() : Collections.emptyMap();
 	}
 	
 	public boolean hasViewSession(Player player) {
-		return playerViewSessions.containsKey(player.getUniqueId());
+		return viewSessions.containsKey(player.getUniqueId());
 	}
 	
 	/**
 	 * Removes the players view session and removes all sent fake blocks.
 	 */
 	public void hideViewSession(Player player) {
-		DisplayUtils.removeFakeBlocks(player, getViewSession(player));
+		
+		ViewSession session = viewSessions.get(player.getUniqueId());
+		
+		if (session == null) {
+			return;
+		}
+		
+		DisplayUtils.removeFakeBlocks(player, session.getShownBlocks());
 		removeVieSession(player);
 	}
 	
@@ -85,8 +92,48 @@ public class ViewHandler {
 	 * Only removes the player reference.
 	 */
 	public void removeVieSession(Player player) {
-		playerViewSessions.remove(player.getUniqueId());
-		viewedPortals.remove(player.getUniqueId());
+		
+		ViewSession session = viewSessions.remove(player.getUniqueId());
+		
+		if (session != null) {
+			setViewedProjection(session, null, null, null);
+		}
+	}
+	
+	/**
+	 * Updates what a session views and keeps the index of the viewers of each projection up to date.
+	 */
+	private void setViewedProjection(ViewSession session, Portal portal, ProjectionCache projection, ViewFrustum frustum) {
+		
+		ProjectionCache oldProjection = session.getViewedProjection();
+		
+		if (oldProjection != projection) {
+			
+			//the viewers of dropped projections are removed already
+			Set<ViewSession> viewers = oldProjection != null ? projectionViewers.get(oldProjection) : null;
+			
+			if (viewers != null) {
+				
+				viewers.remove(session);
+				
+				if (viewers.isEmpty()) {
+					projectionViewers.remove(oldProjection);
+				}
+			}
+			
+			if (projection != null) {
+				projectionViewers.computeIfAbsent(projection, key -> new HashSet<>()).add(session);
+			}
+		}
+		
+		session.setView(portal, projection, frustum);
+	}
+	
+	/**
+	 * Forgets the viewers of a dropped projection cache. They keep their displayed blocks until their view is updated.
+	 */
+	public void removeProjectionViewers(ProjectionCache projection) {
+		projectionViewers.remove(projection);
 	}
 	
 	/**
@@ -152,80 +199,92 @@ public class ViewHandler {
 		
 		if (!portal.projectionsAreLoaded()) {
 			portalHandler.loadProjectionCachesOf(portal);
+			
+			//the block caches of the counter portal are still being loaded
+			if (!portal.projectionsAreLoaded()) {
+				return;
+			}
 		}
 		
 		portalHandler.updateExpirationTime(portal);
-		portalHandler.updateExpirationTime(portal.getCounterPortal());
+		
+		//the caches of other portals unloaded to meet the memory budget might have been shown by the projections
+		if (!portal.projectionsAreLoaded()) {
+			return;
+		}
 		
 		ProjectionCache projection = ViewFrustumFactory.isPlayerBehindPortal(player, portal) ? portal.getFrontProjection() : portal.getBackProjection();
 		ViewFrustum playerFrustum = ViewFrustumFactory.createFrustum(playerEyeLoc.toVector(), portal.getPortalRect(), projection.getCacheLength());
 		
-		viewedPortals.put(player.getUniqueId(), portal);
-		viewedProjections.put(player.getUniqueId(), projection);
+		ViewSession session = viewSessions.get(player.getUniqueId());
 		
-		Map<BlockVec, BlockType> visibleBlocks = new HashMap<>();
+		//a session left over from before the player rejoined still references the old player object
+		if (session != null && session.getPlayer() != player) {
+			removeVieSession(player);
+			session = null;
+		}
 		
-		if (playerFrustum != null && displayFrustum) {
-			visibleBlocks.putAll(getBlocksInFrustum(projection, playerFrustum));
+		if (session == null) {
+			session = new ViewSession(player);
+			viewSessions.put(player.getUniqueId(), session);
 		}
+		BitSet visibleBlocks = playerFrustum != null && displayFrustum ? getBlocksInFrustum(projection, playerFrustum) : new BitSet();
+		Set<BlockVec> portalBlocks = new HashSet<>();
 		
 		if (hidePortalBlocks) {
 			for (Block portalBlock : portal.getPortalBlocks())
-				visibleBlocks.put(new BlockVec(portalBlock), BlockType.of(Material.AIR));
+				portalBlocks.add(new BlockVec(portalBlock));
 		}
 		
-		displayBlocks(player, visibleBlocks);
+		displayBlocks(session, projection, visibleBlocks, portalBlocks);
+		setViewedProjection(session, portal, projection, displayFrustum ? playerFrustum : null);
 	}
 	
-	private Map<BlockVec, BlockType> getBlocksInFrustum(ProjectionCache projection, ViewFrustum frustum) {
+	/**
+	 * Returns the layout indices of the blocks of the projection touching the frustum. Each block layer parallel to the portal
+	 * is only scanned inside the rectangle where the layer cuts the frustum. The block corners found are marked in a grid once
+	 * and all blocks touching them are derived from it at the end. Hidden blocks are only filtered out when they are displayed.
+	 */
+	private BitSet getBlocksInFrustum(ProjectionCache projection, ViewFrustum frustum) {
 		
 		BlockVec min = projection.getMin();
 		BlockVec max = projection.getMax();
 		
-		AxisAlignedRect nearPlaneRect = frustum.getNearPlaneRect();
-		AxisAlignedRect farPlaneRect = frustum.getFarPlaneRect();
+		boolean isAxisX = frustum.getNearPlaneRect().getAxis() == Axis.X;
+		int minDepth = isAxisX ? min.getZ() : min.getX();
+		int maxDepth = isAxisX ? max.getZ() : max.getX();
+		
+		CacheLayout layout = projection.getLayout();
+		CornerGrid cornersInFrustum = new CornerGrid(layout);
 		
-		if (farPlaneRect.getAxis() == Axis.X) {
+		for (int depth = minDepth; depth <= maxDepth; depth++) {
 			
-			double newMinX = Math.min(nearPlaneRect.getMin().getX(), farPlaneRect.getMin().getX());
-			double newMaxX = Math.max(nearPlaneRect.getMax().getX(), farPlaneRect.getMax().getX());
+			AxisAlignedRect crossSection = frustum.getCrossSection(depth);
 			
-			if (newMinX > min.getX()) {
-				min.setX((int) Math.floor(newMinX));
-			}
-			if (newMaxX < max.getX()) {
-				max.setX((int) Math.ceil(newMaxX));
+			if (crossSection == null) {
+				continue;
 			}
 			
-		} else {
+			Vector sectionMin = crossSection.getMin();
+			Vector sectionMax = crossSection.getMax();
 			
-			double newMinZ = Math.min(nearPlaneRect.getMin().getZ(), farPlaneRect.getMin().getZ());
-			double newMaxZ = Math.max(nearPlaneRect.getMax().getZ(), farPlaneRect.getMax().getZ());
+			//the block corners inside the cross section rectangle
+			int minWidth = Math.max(isAxisX ? min.getX() : min.getZ(), (int) Math.ceil(isAxisX ? sectionMin.getX() : sectionMin.getZ()));
+			int maxWidth = Math.min(isAxisX ? max.getX() : max.getZ(), (int) Math.floor(isAxisX ? sectionMax.getX() : sectionMax.getZ()));
+			int minY = Math.max(min.getY(), (int) Math.ceil(sectionMin.getY()));
+			int maxY = Math.min(max.getY(), (int) Math.floor(sectionMax.getY()));
 			
-			if (newMinZ > min.getZ()) {
-				min.setZ((int) Math.floor(newMinZ));
-			}
-			if (newMaxZ < max.getZ()) {
-				max.setZ((int) Math.ceil(newMaxZ));
-			}
-		}
-		
-		Map<BlockVec, BlockType> blocksInFrustum = new HashMap<>();
-		
-		for (int x = min.getX(); x <= max.getX(); x++) {
-			for (int y = min.getY(); y <= max.getY(); y++) {
-				for (int z = min.getZ(); z <= max.getZ(); z++) {
-					
-					BlockVec blockPos = new BlockVec(x, y, z);
-					
-					if (frustum.contains(blockPos.toVector())) {
-						blocksInFrustum.putAll(projection.getBlockTypesAround(new BlockVec(x, y, z)));
-					}
+			for (int width = minWidth; width <= maxWidth; width++) {
+				
+				if (isAxisX) {
+					cornersInFrustum.markColumn(width, depth, minY, maxY);
+				} else {
+					cornersInFrustum.markColumn(depth, width, minY, maxY);
 				}
 			}
 		}
 		
-		return blocksInFrustum;
+		return cornersInFrustum.getTouchedBlocks();
 	}
 	
 	/**
@@ -241,33 +300,29 @@ public class ViewHandler {
 				
 				Transform blockTransform = projection.getTransform();
 				BlockVec projectionBlockPos = blockTransform.transformVec(entry.getKey().clone());
-				BlockType projectionBlockType = entry.getValue().clone().rotate(blockTransform.getQuarterTurns());
+				BlockType projectionBlockType = entry.getValue().rotate(blockTransform.getQuarterTurns());
+				
+				//projections that are only views of the block cache are already up to date
+				if (projection.hasBlockCopies()) {
+					projection.setBlockTypeAt(projectionBlockPos, projectionBlockType);
+				}
 				
-				projection.setBlockTypeAt(projectionBlockPos, projectionBlockType);
 				projectionUpdates.put(projectionBlockPos, projectionBlockType);
 			}
 			
-			//TODO stop iterating same players for each projection?
-			for (UUID playerID : viewedProjections.keySet()) {
+			for (ViewSession session : projectionViewers.getOrDefault(projection, Collections.emptySet())) {
 				
-				if (viewedProjections.get(playerID) != projection) {
-					continue;
-				}
-				
-				Portal portal = viewedPortals.get(playerID);
-				Player player = Bukkit.getPlayer(playerID);
-				
-				ViewFrustum playerFrustum = ViewFrustumFactory.createFrustum(
-						player.getEyeLocation().toVector(),
-						portal.getPortalRect(),
-						projection.getCacheLength());
+				//the frustum of the last view update is used, it is updated as soon as the player moves
+				ViewFrustum playerFrustum = session.getFrustum();
 				
 				if (playerFrustum == null) {
 					continue;
 				}
 				
+				Player player = session.getPlayer();
 				Map<BlockVec, BlockType> blocksInFrustum = new HashMap<>();
-				Map<BlockVec, BlockType> viewSession = getViewSession(player);
+				Map<BlockVec, BlockType> viewSession = session.getShownBlocks();
+				CacheLayout layout = projection.getLayout();
 				
 				for (Map.Entry<BlockVec, BlockType> entry : projectionUpdates.entrySet()) {
 					
@@ -278,9 +333,20 @@ public class ViewHandler {
 						blockType = BlockType.of(blockPos.toBlock(player.getWorld()));
 					}
 					
-					if (playerFrustum.containsBlock(blockPos.toVector())) {
+					//hidden portal blocks stay hidden
+					if (session.getShownPortalBlocks().contains(blockPos)) {
+						continue;
+					}
+					
+					if (playerFrustum.containsBlock(blockPos.getX(), blockPos.getY(), blockPos.getZ())) {
 						blocksInFrustum.put(blockPos, blockType);
 						viewSession.put(blockPos, blockType);
+						
+						int index = layout.indexOf(blockPos);
+						
+						if (index >= 0) {
+							session.getShownProjectionBlocks().set(index);
+						}
 					}
 				}
 				
@@ -291,37 +357,94 @@ public class ViewHandler {
 	
 	/**
 	 * Adding new blocks to the portal animation for a player.
-	 * But first redundant blocks are filtered out and outdated blocks are refreshed for the player.
+	 * The displayed projection blocks are compared to the new ones as bit sets, so only added and removed blocks are looked at.
+	 * Blocks that are displayed already are not sent again.
 	 */
-	private void displayBlocks(Player player, Map<BlockVec, BlockType> blocksToDisplay) {
+	private void displayBlocks(ViewSession session, ProjectionCache projection, BitSet blocksInFrustum, Set<BlockVec> portalBlocks) {
 		
-		Map<BlockVec, BlockType> viewSession = getViewSession(player);
+		Map<BlockVec, BlockType> viewSession = session.getShownBlocks();
+		BitSet shownBlocks = session.getShownProjectionBlocks();
+		Set<BlockVec> shownPortalBlocks = session.getShownPortalBlocks();
+		ProjectionCache shownProjection = session.getViewedProjection();
 		
 		Map<BlockVec, BlockType> removedBlocks = new HashMap<>();
-		Iterator<BlockVec> iterator = viewSession.keySet().iterator();
+		Map<BlockVec, BlockType> addedBlocks = new HashMap<>();
+		
+		//indices of different projections cannot be compared, so all blocks of the previous projection are removed
+		if (shownProjection != null && shownProjection != projection) {
+			removeProjectionBlocks(shownProjection.getLayout(), shownBlocks, viewSession, removedBlocks);
+			shownBlocks.clear();
+		}
+		
+		CacheLayout layout = projection.getLayout();
+		
+		//portal blocks are hidden instead of displaying the projection at their position
+		for (BlockVec portalBlock : portalBlocks) {
+			
+			int index = layout.indexOf(portalBlock);
+			
+			if (index >= 0) {
+				blocksInFrustum.clear(index);
+			}
+		}
+		
+		BitSet removedIndices = (BitSet) shownBlocks.clone();
+		removedIndices.andNot(blocksInFrustum);
+		removeProjectionBlocks(layout, removedIndices, viewSession, removedBlocks);
+		shownBlocks.andNot(removedIndices);
+		
+		Iterator<BlockVec> iterator = shownPortalBlocks.iterator();
 		
 		while (iterator.hasNext()) {
 			
 			BlockVec blockPos = iterator.next();
 			
-			if (!blocksToDisplay.containsKey(blockPos)) {
-				removedBlocks.put(blockPos, viewSession.get(blockPos));
+			if (!portalBlocks.contains(blockPos)) {
+				removedBlocks.put(blockPos, viewSession.remove(blockPos));
 				iterator.remove();
 			}
 		}
 		
-		iterator = blocksToDisplay.keySet().iterator();
+		BitSet addedIndices = (BitSet) blocksInFrustum.clone();
+		addedIndices.andNot(shownBlocks);
 		
-		while (iterator.hasNext()) {
+		//each block not displayed yet is looked up once, hidden blocks are skipped
+		for (int index = addedIndices.nextSetBit(0); index >= 0; index = addedIndices.nextSetBit(index + 1)) {
 			
-			if (viewSession.containsKey(iterator.next())) {
-				iterator.remove();
+			BlockType blockType = projection.getBlockTypeAt(index);
+			
+			if (blockType != null) {
+				addedBlocks.put(layout.posOf(index), blockType);
+				shownBlocks.set(index);
 			}
 		}
 		
-		viewSession.putAll(blocksToDisplay);
+		for (BlockVec portalBlock : portalBlocks) {
+			
+			if (shownPortalBlocks.add(portalBlock)) {
+				addedBlocks.put(portalBlock, BlockType.of(Material.AIR));
+			}
+		}
+		
+		//blocks that were removed and added again do not need to be reset
+		removedBlocks.keySet().removeAll(addedBlocks.keySet());
+		viewSession.putAll(addedBlocks);
+		
+		Player player = session.getPlayer();
 		DisplayUtils.removeFakeBlocks(player, removedBlocks);
-		DisplayUtils.displayFakeBlocks(player, blocksToDisplay);
+		DisplayUtils.displayFakeBlocks(player, addedBlocks);
+	}
+	
+	/**
+	 * Removes the projection blocks at the given layout indices from the view session and collects them.
+	 */
+	private void removeProjectionBlocks(CacheLayout layout, BitSet indices, Map<BlockVec, BlockType> viewSession, Map<BlockVec, BlockType> removedBlocks) {
+		
+		for (int index = indices.nextSetBit(0); index >= 0; index = indices.nextSetBit(index + 1)) {
+			
+			BlockVec blockPos = layout.posOf(index);
+			removedBlocks.put(blockPos, viewSession.remove(blockPos));
+		}
 	}
 	
 	/**
@@ -329,18 +452,14 @@ public class ViewHandler {
 	 */
 	public void removePortal(Portal portal) {
 		
-		Set<Portal> affectedPortals = portalHandler.getPortalsLinkedTo(portal);
+		Set<Portal> affectedPortals = new HashSet<>(portalHandler.getPortalsLinkedTo(portal));
 		affectedPortals.add(portal);
-		Iterator<Map.Entry<UUID, Portal>> iter = viewedPortals.entrySet().iterator();
 		
-		while (iter.hasNext()) {
-			
-			Map.Entry<UUID, Portal> playerView = iter.next();
+		//copy the sessions first because hideViewSession() removes them
+		for (ViewSession session : new ArrayList<>(viewSessions.values())) {
 			
-			//call iter.remove() first because otherwise hideViewSession() will create ConcurrentModificationException
-			if (affectedPortals.contains(playerView.getValue())) {
-				iter.remove();
-				hideViewSession(Bukkit.getPlayer(playerView.getKey()));
+			if (affectedPortals.contains(session.getViewedPortal())) {
+				hideViewSession(session.getPlayer());
 			}
 		}
 	}
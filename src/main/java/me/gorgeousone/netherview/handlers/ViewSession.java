@@ -0,0 +1,86 @@
+package me.gorgeousone.netherview.handlers;
+
+import me.gorgeousone.netherview.blockcache.ProjectionCache;
+import me.gorgeousone.netherview.blocktype.BlockType;
+import me.gorgeousone.netherview.portal.Portal;
+import me.gorgeousone.netherview.threedstuff.BlockVec;
+import me.gorgeousone.netherview.threedstuff.viewfrustum.ViewFrustum;
+import org.bukkit.entity.Player;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * What a player currently sees of a portal: the viewed portal and projection, the view frustum of the last time the view
+ * was updated and the fake blocks displayed to the player.
+ * <p>
+ * The displayed projection blocks are also stored as bits over the indices of the projection's layout,
+ * so they can be compared with the blocks in a new frustum with a few bit operations.
+ */
+public class ViewSession {
+	
+	private final Player player;
+	private final Map<BlockVec, BlockType> shownBlocks;
+	private final BitSet shownProjectionBlocks;
+	private final Set<BlockVec> shownPortalBlocks;
+	
+	private Portal viewedPortal;
+	private ProjectionCache viewedProjection;
+	private ViewFrustum frustum;
+	
+	public ViewSession(Player player) {
+		this.player = player;
+		this.shownBlocks = new HashMap<>();
+		this.shownProjectionBlocks = new BitSet();
+		this.shownPortalBlocks = new HashSet<>();
+	}
+	
+	public Player getPlayer() {
+		return player;
+	}
+	
+	/**
+	 * Returns the fake blocks currently displayed to the player.
+	 */
+	public Map<BlockVec, BlockType> getShownBlocks() {
+		return shownBlocks;
+	}
+	
+	/**
+	 * Returns the layout indices of the blocks of the viewed projection that are currently displayed.
+	 */
+	public BitSet getShownProjectionBlocks() {
+		return shownProjectionBlocks;
+	}
+	
+	/**
+	 * Returns the positions of the portal blocks currently hidden with fake air blocks.
+	 */
+	public Set<BlockVec> getShownPortalBlocks() {
+		return shownPortalBlocks;
+	}
+	
+	public Portal getViewedPortal() {
+		return viewedPortal;
+	}
+	
+	public ProjectionCache getViewedProjection() {
+		return viewedProjection;
+	}
+	
+	/**
+	 * Returns the frustum the player viewed the projection through or null if the player could not look through the portal.
+	 */
+	public ViewFrustum getFrustum() {
+		return frustum;
+	}
+	
+	void setView(Portal viewedPortal, ProjectionCache viewedProjection, ViewFrustum frustum) {
+		this.viewedPortal = viewedPortal;
+		this.viewedProjection = viewedProjection;
+		this.frustum = frustum;
+	}
+}
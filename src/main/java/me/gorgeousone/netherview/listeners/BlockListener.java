@@ -7,9 +7,8 @@ import com.comphenix.protocol.events.PacketAdapter;
 import com.comphenix.protocol.events.PacketEvent;
 import com.comphenix.protocol.wrappers.BlockPosition;
 import me.gorgeousone.netherview.NetherView;
-import me.gorgeousone.netherview.blockcache.BlockCache;
-import me.gorgeousone.netherview.blockcache.BlockCacheFactory;
 import me.gorgeousone.netherview.blocktype.BlockType;
+import me.gorgeousone.netherview.handlers.BlockUpdateQueue;
 import me.gorgeousone.netherview.handlers.PortalHandler;
 import me.gorgeousone.netherview.handlers.ViewHandler;
 import me.gorgeousone.netherview.portal.Portal;
@@ -45,14 +44,17 @@ public class BlockListener implements Listener {
 	private NetherView main;
 	private PortalHandler portalHandler;
 	private ViewHandler viewHandler;
+	private BlockUpdateQueue blockUpdateQueue;
 	
 	public BlockListener(NetherView main,
 	                     PortalHandler portalHandler,
-	                     ViewHandler viewHandler) {
+	                     ViewHandler viewHandler,
+	                     BlockUpdateQueue blockUpdateQueue) {
 		
 		this.main = main;
 		this.portalHandler = portalHandler;
 		this.viewHandler = viewHandler;
+		this.blockUpdateQueue = blockUpdateQueue;
 		addBlockUpdateInterceptor();
 	}
 	
@@ -112,30 +114,6 @@ public class BlockListener implements Listener {
 		}
 	}
 	
-	private void updateBlockCaches(Block block, BlockType newBlockType, boolean blockWasOccluding) {
-		
-		World blockWorld = block.getWorld();
-		
-		if (!portalHandler.hasPortals(blockWorld)) {
-			return;
-		}
-		
-		BlockVec blockPos = new BlockVec(block);
-		
-		for (BlockCache cache : portalHandler.getBlockCaches(blockWorld)) {
-			
-			if (!cache.contains(blockPos)) {
-				continue;
-			}
-			
-			Map<BlockVec, BlockType> updatedCopies = BlockCacheFactory.updateBlockInCache(cache, block, newBlockType, blockWasOccluding);
-			
-			if (!updatedCopies.isEmpty()) {
-				viewHandler.updateProjections(cache, updatedCopies);
-			}
-		}
-	}
-	
 	@EventHandler(priority = EventPriority.LOWEST)
 	public void onBlockInteract(PlayerInteractEvent event) {
 		
@@ -163,7 +141,7 @@ public class BlockListener implements Listener {
 		Block block = event.getBlock();
 		Material blockType = block.getType();
 		
-		updateBlockCaches(block, BlockType.of(Material.AIR), block.getType().isOccluding());
+		blockUpdateQueue.queueChange(block, BlockType.of(Material.AIR));
 		
 		if (blockType == Material.OBSIDIAN || blockType == Material.NETHER_PORTAL) {
 			removeDamagedPortals(block);
@@ -174,7 +152,7 @@ public class BlockListener implements Listener {
 	public void onBlockPlace(BlockPlaceEvent event) {
 		
 		Block block = event.getBlock();
-		updateBlockCaches(block, BlockType.of(block), false);
+		blockUpdateQueue.queueChange(block, BlockType.of(block));
 		
 		Player player = event.getPlayer();
 		
@@ -200,7 +178,7 @@ public class BlockListener implements Listener {
 		}
 		
 		for (Block block : event.blockList())
-			updateBlockCaches(block, BlockType.of(Material.AIR), block.getType().isOccluding());
+			blockUpdateQueue.queueChange(block, BlockType.of(Material.AIR));
 	}
 	
 	@EventHandler(priority = EventPriority.HIGHEST, ignoreCancelled = true)
@@ -213,25 +191,25 @@ public class BlockListener implements Listener {
 		}
 		
 		for (Block block : event.blockList())
-			updateBlockCaches(block, BlockType.of(Material.AIR), block.getType().isOccluding());
+			blockUpdateQueue.queueChange(block, BlockType.of(Material.AIR));
 	}
 	
 	//water, lava, dragon eggs
 	@EventHandler(priority = EventPriority.HIGHEST, ignoreCancelled = true)
 	public void onBlockSpill(BlockFromToEvent event) {
 		Block block = event.getToBlock();
-		updateBlockCaches(block, BlockType.of(event.getBlock()), false);
+		blockUpdateQueue.queueChange(block, BlockType.of(event.getBlock()));
 	}
 	
 	@EventHandler(priority = EventPriority.HIGHEST, ignoreCancelled = true)
 	public void onBlockBurn(BlockBurnEvent event) {
 		Block block = event.getBlock();
-		updateBlockCaches(block, BlockType.of(Material.AIR), block.getType().isOccluding());
+		blockUpdateQueue.queueChange(block, BlockType.of(Material.AIR));
 	}
 	
 	private void onAnyGrowEvent(BlockGrowEvent event) {
 		Block block = event.getBlock();
-		updateBlockCaches(block, BlockType.of(event.getNewState()), block.getType().isOccluding());
+		blockUpdateQueue.queueChange(block, BlockType.of(event.getNewState()));
 	}
 	
 	//pumpkin/melon growing
@@ -256,21 +234,21 @@ public class BlockListener implements Listener {
 	@EventHandler(priority = EventPriority.HIGHEST, ignoreCancelled = true)
 	public void onBlockFade(BlockFadeEvent event) {
 		Block block = event.getBlock();
-		updateBlockCaches(block, BlockType.of(event.getNewState()), block.getType().isOccluding());
+		blockUpdateQueue.queueChange(block, BlockType.of(event.getNewState()));
 	}
 	
 	//falling sand and maybe endermen (actually also sheeps but that doesn't work)
 	@EventHandler(priority = EventPriority.HIGHEST, ignoreCancelled = true)
 	public void onEntityChangeBlock(EntityChangeBlockEvent event) {
 		Block block = event.getBlock();
-		updateBlockCaches(block, BlockType.of(event.getBlock()), false);
+		blockUpdateQueue.queueChange(block, BlockType.of(event.getBlock()));
 	}
 	
 	@EventHandler(priority = EventPriority.HIGHEST, ignoreCancelled = true)
 	public void onPlantGrow(StructureGrowEvent event) {
 		
 		for (BlockState state : event.getBlocks()) {
-			updateBlockCaches(state.getBlock(), BlockType.of(state), false);
+			blockUpdateQueue.queueChange(state.getBlock(), BlockType.of(state));
 		}
 	}
 }
\ No newline at end of file
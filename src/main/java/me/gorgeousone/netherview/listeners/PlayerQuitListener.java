@@ -1,8 +1,6 @@
 package me.gorgeousone.netherview.listeners;
 
-import me.gorgeousone.netherview.NetherView;
 import me.gorgeousone.netherview.handlers.ViewHandler;
-import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.Listener;
 import org.bukkit.event.player.PlayerQuitEvent;
@@ -15,13 +13,12 @@ public class PlayerQuitListener implements Listener {
 		this.viewHandler = viewHandler;
 	}
 	
+	/**
+	 * Drops the view session of the player, so the player object is not referenced anymore.
+	 * The permission is not checked, because the player might have lost it while viewing a portal.
+	 */
 	@EventHandler
 	public void onQuit(PlayerQuitEvent event) {
-		
-		Player player = event.getPlayer();
-		
-		if (player.hasPermission(NetherView.VIEW_PERM)) {
-			viewHandler.removeVieSession(player);
-		}
+		viewHandler.removeVieSession(event.getPlayer());
 	}
 }
\ No newline at end of file
@@ -0,0 +1,27 @@
+package me.gorgeousone.netherview.portal;
+
+/**
+ * The lifecycle of the block caches of a portal.
+ */
+public enum CacheState {
+	
+	/**
+	 * There are no block caches and none are being loaded.
+	 */
+	UNLOADED,
+	
+	/**
+	 * The chunks for the block caches are being loaded. All requests for the caches join the same load.
+	 */
+	LOADING,
+	
+	/**
+	 * The block caches are set to the portal (their deeper layers might still be building).
+	 */
+	READY,
+	
+	/**
+	 * The block caches are dropped and still being written to disk. They cannot be loaded again until they are written.
+	 */
+	EVICTING
+}
@@ -15,6 +15,8 @@ import org.bukkit.block.Block;
 import java.util.HashSet;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class Portal {
 	
@@ -33,6 +35,9 @@ public class Portal {
 	private BlockCachePair blockCaches;
 	private ProjectionCachePair projectionCaches;
 	
+	private final AtomicReference<CacheState> cacheState;
+	private CompletableFuture<BlockCachePair> cacheLoad;
+	
 	private boolean exists;
 	
 	public Portal(World world,
@@ -52,6 +57,7 @@ public class Portal {
 		this.max = max;
 		
 		this.exists = true;
+		this.cacheState = new AtomicReference<>(CacheState.UNLOADED);
 	}
 	
 	public void remove() {
@@ -82,6 +88,14 @@ public class Portal {
 		return frameBlocks;
 	}
 	
+	public BlockVec getMin() {
+		return min.clone();
+	}
+	
+	public BlockVec getMax() {
+		return max.clone();
+	}
+	
 	public boolean contains(BlockVec loc) {
 		return loc.getX() >= min.getX() && loc.getX() < max.getX() &&
 		       loc.getY() >= min.getY() && loc.getY() < max.getY() &&
@@ -109,22 +123,42 @@ public class Portal {
 		removeProjectionCaches();
 	}
 	
+	/**
+	 * Returns true if the portal is linked to a counter portal that was not removed.
+	 * Links to removed portals are removed by the portal handler.
+	 */
 	public boolean isLinked() {
-		
-		if (counterPortal == null) { return false; }
-		
-		if (!counterPortal.exists()) {
-			removeLink();
-			return false;
-		}
-		
-		return true;
+		return counterPortal != null && counterPortal.exists();
 	}
 	
 	private boolean exists() {
 		return exists;
 	}
 	
+	public CacheState getCacheState() {
+		return cacheState.get();
+	}
+	
+	/**
+	 * Changes the state of the block caches if it currently is the expected state.
+	 *
+	 * @return true if the state was changed
+	 */
+	public boolean transitionCacheState(CacheState expectedState, CacheState newState) {
+		return cacheState.compareAndSet(expectedState, newState);
+	}
+	
+	/**
+	 * Returns the running load of the block caches, or null if the caches are not loading.
+	 */
+	public CompletableFuture<BlockCachePair> getCacheLoad() {
+		return cacheLoad;
+	}
+	
+	public void setCacheLoad(CompletableFuture<BlockCachePair> cacheLoad) {
+		this.cacheLoad = cacheLoad;
+	}
+	
 	public void setBlockCaches(BlockCachePair blockCaches) {
 		this.blockCaches = blockCaches;
 	}
@@ -137,6 +171,10 @@ public class Portal {
 		return blockCaches != null;
 	}
 	
+	public BlockCachePair getBlockCaches() {
+		return blockCaches;
+	}
+	
 	public BlockCache getFrontCache() {
 		return blockCaches.front();
 	}
@@ -146,10 +184,17 @@ public class Portal {
 	}
 	
 	public void setProjectionCaches(ProjectionCachePair projectionCaches) {
+		removeProjectionCaches();
 		this.projectionCaches = projectionCaches;
 	}
 	
 	public void removeProjectionCaches() {
+		
+		if (projectionCaches != null) {
+			projectionCaches.front().release();
+			projectionCaches.back().release();
+		}
+		
 		this.projectionCaches = null;
 	}
 	
@@ -1,22 +1,38 @@
 package me.gorgeousone.netherview.threedstuff.viewfrustum;
 
+import me.gorgeousone.netherview.blocktype.Axis;
 import me.gorgeousone.netherview.threedstuff.AxisAlignedRect;
 import me.gorgeousone.netherview.threedstuff.Line;
 import me.gorgeousone.netherview.threedstuff.Plane;
 import org.bukkit.util.Vector;
 
+/**
+ * The pyramid frustum a player sees through a portal. It is stored as the 6 half-spaces bounding it (4 sides, near and far plane),
+ * so checking if a point is inside only takes a few multiplications and does not create any objects.
+ */
 public class ViewFrustum {
 	
+	private static final int PLANE_COUNT = 6;
+	
 	private Vector viewPoint;
 	private AxisAlignedRect nearPlaneRect;
 	private AxisAlignedRect farPlaneRect;
 	
+	//normal x, y, z and offset of each bounding plane, the normals are facing inwards
+	private final double[] planes;
+	
+	//coordinates of the near and far plane along the plane normal
+	private double nearDepth;
+	private double farDepth;
+	
 	public ViewFrustum(Vector viewPoint, AxisAlignedRect nearPlane, double frustumLength) {
 		
 		this.viewPoint = viewPoint;
 		this.nearPlaneRect = nearPlane;
+		this.planes = new double[PLANE_COUNT * 4];
 		
 		createFarPlaneRect(frustumLength);
+		createBoundingPlanes(frustumLength);
 	}
 	
 	public AxisAlignedRect getNearPlaneRect() {
@@ -27,24 +43,68 @@ public class ViewFrustum {
 		return farPlaneRect;
 	}
 	
+	/**
+	 * Returns the rectangle where a plane parallel to the near plane cuts the frustum or null if the plane does not intersect the frustum.
+	 *
+	 * @param depth coordinate of the plane along the near plane normal (z for portals along the x axis, x for portals along the z axis)
+	 */
+	public AxisAlignedRect getCrossSection(double depth) {
+		
+		if (depth < Math.min(nearDepth, farDepth) || depth > Math.max(nearDepth, farDepth)) {
+			return null;
+		}
+		
+		//the cross section is the near plane rectangle scaled around the view point
+		double viewPointDepth = depthOf(viewPoint);
+		double scale = (depth - viewPointDepth) / (nearDepth - viewPointDepth);
+		
+		Vector sectionMin = nearPlaneRect.getMin().subtract(viewPoint).multiply(scale).add(viewPoint);
+		
+		if (nearPlaneRect.getAxis() == Axis.X) {
+			sectionMin.setZ(depth);
+		} else {
+			sectionMin.setX(depth);
+		}
+		
+		return new AxisAlignedRect(nearPlaneRect.getAxis(), sectionMin, nearPlaneRect.width() * scale, nearPlaneRect.height() * scale);
+	}
+	
 	public boolean contains(Vector point) {
+		return contains(point.getX(), point.getY(), point.getZ());
+	}
+	
+	/**
+	 * Returns true if the point lies inside of all bounding planes of the frustum (or on one of them).
+	 */
+	public boolean contains(double x, double y, double z) {
 		
-		DefinedLine lineOfView = new DefinedLine(viewPoint, point);
-		Vector pointInNearPlane = nearPlaneRect.getPlane().getIntersection(lineOfView);
+		for (int i = 0; i < planes.length; i += 4) {
+			
+			if (planes[i] * x + planes[i + 1] * y + planes[i + 2] * z + planes[i + 3] < 0) {
+				return false;
+			}
+		}
 		
-		return pointInNearPlane != null && nearPlaneRect.contains(pointInNearPlane);
+		return true;
 	}
 	
 	/**
 	 * Returns true if any vertex of the block at the given position intersects the frustum
 	 */
 	public boolean containsBlock(Vector blockPos) {
+		return containsBlock(blockPos.getBlockX(), blockPos.getBlockY(), blockPos.getBlockZ());
+	}
+	
+	/**
+	 * Returns true if any vertex of the block at the given position intersects the frustum
+	 */
+	public boolean containsBlock(int x, int y, int z) {
 		
 		for (int dx = 0; dx <= 1; dx++) {
 			for (int dy = 0; dy <= 1; dy++) {
 				for (int dz = 0; dz <= 1; dz++) {
 					
-					if (contains(blockPos.clone().add(new Vector(dy, dy, dz)))) {
+					if (contains(x + dx, y + dy, z + dz)) {
 						return true;
 					}
 				}
@@ -82,4 +142,68 @@ public class ViewFrustum {
 		
 		farPlaneRect = new AxisAlignedRect(nearPlaneRect.getAxis(), farRectMin, rectWidth, rectHeight);
 	}
-}
\ No newline at end of file
+	
+	/**
+	 * Calculates the planes through the view point and each edge of the near plane rectangle
+	 * as well as the near and far plane themselves.
+	 */
+	private void createBoundingPlanes(double frustumLength) {
+		
+		Vector min = nearPlaneRect.getMin();
+		Vector max = nearPlaneRect.getMax();
+		Vector normal = nearPlaneRect.getNormal();
+		
+		//the corners of the near plane rectangle in order around it
+		Vector[] corners = {
+				min,
+				new Vector(max.getX(), min.getY(), max.getZ()),
+				max,
+				new Vector(min.getX(), max.getY(), min.getZ())};
+		
+		Vector center = min.clone().add(max).multiply(0.5);
+		
+		for (int i = 0; i < 4; i++) {
+			
+			Vector edgeStart = corners[i].clone().subtract(viewPoint);
+			Vector edgeEnd = corners[(i + 1) % 4].clone().subtract(viewPoint);
+			setPlane(i, edgeStart.crossProduct(edgeEnd), viewPoint, center);
+		}
+		
+		//the near plane normal has to face away from the view point
+		if (normal.dot(min.clone().subtract(viewPoint)) < 0) {
+			normal.multiply(-1);
+		}
+		
+		//the far plane lies behind the last block layer of the projection, so the back corners of those blocks are included
+		Vector farPlaneOrigin = min.clone().add(normal.clone().multiply(frustumLength + 1));
+		
+		nearDepth = depthOf(min);
+		farDepth = depthOf(farPlaneOrigin);
+		
+		setPlane(4, normal, min, farPlaneOrigin);
+		setPlane(5, normal.clone().multiply(-1), farPlaneOrigin, min);
+	}
+	
+	private double depthOf(Vector point) {
+		return nearPlaneRect.getAxis() == Axis.X ? point.getZ() : point.getX();
+	}
+	
+	/**
+	 * Stores the plane through the origin with the given normal, facing to the side of the inner point.
+	 */
+	private void setPlane(int index, Vector normal, Vector origin, Vector innerPoint) {
+		
+		double offset = -normal.dot(origin);
+		
+		if (normal.dot(innerPoint) + offset < 0) {
+			normal.multiply(-1);
+			offset = -offset;
+		}
+		
+		int i = index * 4;
+		planes[i] = normal.getX();
+		planes[i + 1] = normal.getY();
+		planes[i + 2] = normal.getZ();
+		planes[i + 3] = offset;
+	}
+}
@@ -0,0 +1,269 @@
+package blockcachetests;
+
+import me.gorgeousone.netherview.blockcache.BlockCache;
+import me.gorgeousone.netherview.blockcache.BlockCacheStore;
+import me.gorgeousone.netherview.blockcache.CacheLayout;
+import me.gorgeousone.netherview.blockcache.MirrorSection;
+import me.gorgeousone.netherview.blockcache.PalettedBlockStorage;
+import me.gorgeousone.netherview.blockcache.WorldMirror;
+import me.gorgeousone.netherview.blocktype.Axis;
+import me.gorgeousone.netherview.blocktype.BlockType;
+import me.gorgeousone.netherview.portal.Portal;
+import me.gorgeousone.netherview.threedstuff.AxisAlignedRect;
+import me.gorgeousone.netherview.threedstuff.BlockVec;
+import org.bukkit.Chunk;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.util.Vector;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+public class BlockCacheStoreTests {
+	
+	private static final long CHUNK_STAMP = 0x1234_5678_9ABCL;
+	
+	private final BlockType stone = createBlockType(Material.STONE, "minecraft:stone");
+	private final BlockType stairs = createBlockType(Material.OAK_STAIRS, "minecraft:oak_stairs[facing=north,half=bottom,shape=straight,waterlogged=false]");
+	private final BlockType air = createBlockType(Material.AIR, "minecraft:air");
+	
+	private final CacheLayout layout = new CacheLayout(new BlockVec(-3, 60, 10), 4, 8, 6);
+	
+	@Test
+	public void writeAndReadCache() throws IOException {
+		
+		Random random = new Random(5);
+		BlockType[] blockTypes = {null, stone, stairs, air};
+		PalettedBlockStorage[] sections = {new PalettedBlockStorage(MirrorSection.VOLUME), new PalettedBlockStorage(MirrorSection.VOLUME)};
+		
+		for (PalettedBlockStorage section : sections) {
+			for (int i = 0; i < MirrorSection.VOLUME; i++) {
+				section.set(i, blockTypes[random.nextInt(blockTypes.length)]);
+			}
+		}
+		
+		long[] visibleBlocks = random.longs(3).toArray();
+		ByteBuffer buffer = BlockCacheStore.writeCache(CHUNK_STAMP, layout, stone, visibleBlocks, sections);
+		
+		//palette entries have to be stored as complete block data strings, not only material names
+		Map<String, BlockType> serializedTypes = new HashMap<>();
+		serializedTypes.put(stone.toString(), stone);
+		serializedTypes.put(stairs.toString(), stairs);
+		serializedTypes.put(air.toString(), air);
+		
+		BlockCacheStore.StoredBlocks storedBlocks = BlockCacheStore.readCache(buffer, CHUNK_STAMP, layout, stone, sections.length, serializedTypes::get);
+		
+		Assertions.assertNotNull(storedBlocks);
+		Assertions.assertArrayEquals(visibleBlocks, storedBlocks.visibleBlocks());
+		Assertions.assertEquals(sections.length, storedBlocks.sections().length);
+		
+		for (int i = 0; i < sections.length; i++) {
+			for (int index = 0; index < MirrorSection.VOLUME; index++) {
+				Assertions.assertSame(sections[i].get(index), storedBlocks.sections()[i].get(index));
+			}
+		}
+	}
+	
+	@Test
+	public void rejectOutdatedCache() throws IOException {
+		
+		PalettedBlockStorage[] sections = {new PalettedBlockStorage(MirrorSection.VOLUME)};
+		Function<String, BlockType> parser = serialized -> stone;
+		
+		ByteBuffer buffer = BlockCacheStore.writeCache(CHUNK_STAMP, layout, stone, new long[1], sections);
+		Assertions.assertNull(BlockCacheStore.readCache(buffer, CHUNK_STAMP + 1, layout, stone, 1, parser));
+		
+		buffer.rewind();
+		Assertions.assertNull(BlockCacheStore.readCache(buffer, CHUNK_STAMP, layout, air, 1, parser));
+		
+		buffer.rewind();
+		Assertions.assertNull(BlockCacheStore.readCache(buffer, CHUNK_STAMP, new CacheLayout(new BlockVec(-3, 60, 10), 4, 9, 6), stone, 1, parser));
+	}
+	
+	@Test
+	public void rejectBrokenLengths() {
+		
+		PalettedBlockStorage[] sections = {new PalettedBlockStorage(MirrorSection.VOLUME)};
+		ByteBuffer buffer = BlockCacheStore.writeCache(CHUNK_STAMP, layout, stone, new long[1], sections);
+		
+		//the length of the visible blocks follows the header (magic, version, stamp, layout) and the border block type
+		int visibleBlocksLengthPos = 2 * Integer.BYTES + Long.BYTES + 6 * Integer.BYTES + Integer.BYTES + stone.toString().length();
+		buffer.putInt(visibleBlocksLengthPos, Integer.MAX_VALUE);
+		
+		Assertions.assertThrows(IOException.class, () -> BlockCacheStore.readCache(buffer, CHUNK_STAMP, layout, stone, 1, serialized -> stone));
+	}
+	
+	@Test
+	public void restoreStoredCache(@TempDir File directory) throws IOException {
+		
+		WorldMirror mirror = new WorldMirror((chargedPortal, bytes) -> {});
+		BlockCache cache = createCache(mirror);
+		BlockCacheStore store = new BlockCacheStore(directory, serialized -> stone);
+		
+		long chunkStamp = store.getChunkStamp(cache);
+		writeStoredCache(store, directory, cache, mirror, chunkStamp);
+		
+		Assertions.assertNull(store.read(cache, true, chunkStamp + 1));
+		Assertions.assertNull(store.read(cache, false, chunkStamp));
+		
+		BlockCacheStore.StoredBlocks storedBlocks = store.read(cache, true, chunkStamp);
+		
+		//the chunks changed since the blocks were read
+		Assertions.assertFalse(store.restore(cache, storedBlocks, chunkStamp + 1));
+		Assertions.assertFalse(mirror.getSectionAt(-3, 60, 10).isFilled());
+		
+		Assertions.assertTrue(store.restore(cache, storedBlocks, chunkStamp));
+		Assertions.assertSame(stone, mirror.getSectionAt(-3, 60, 10).getBlockType(-3, 60, 10));
+		Assertions.assertSame(stone, mirror.getSectionAt(1, 67, 15).getBlockType(1, 67, 15));
+	}
+	
+	@Test
+	public void skipRestoreOfMirroredSections(@TempDir File directory) throws IOException {
+		
+		WorldMirror mirror = new WorldMirror((chargedPortal, bytes) -> {});
+		BlockCache cache = createCache(mirror);
+		BlockCacheStore store = new BlockCacheStore(directory, serialized -> stone);
+		
+		long chunkStamp = store.getChunkStamp(cache);
+		writeStoredCache(store, directory, cache, mirror, chunkStamp);
+		BlockCacheStore.StoredBlocks storedBlocks = store.read(cache, true, chunkStamp);
+		
+		//another cache is still copying a section of the cache from the world
+		MirrorSection sharedSection = mirror.getSectionAt(-3, 60, 10);
+		MirrorSection otherSection = mirror.getSectionAt(1, 67, 15);
+		sharedSection.setFillPending(true);
+		
+		Assertions.assertFalse(store.restore(cache, storedBlocks, chunkStamp));
+		Assertions.assertFalse(sharedSection.isFilled());
+		Assertions.assertFalse(otherSection.isFilled());
+		
+		//the stored visibility might not match the blocks of a section that is mirrored already
+		sharedSection.fill(filledSection(air));
+		Assertions.assertFalse(store.restore(cache, storedBlocks, chunkStamp));
+		Assertions.assertFalse(otherSection.isFilled());
+		
+		//a late copy does not replace the newer blocks of a filled section
+		sharedSection.fill(filledSection(stone));
+		Assertions.assertSame(air, sharedSection.getBlockType(-3, 60, 10));
+	}
+	
+	private BlockCache createCache(WorldMirror mirror) {
+		
+		AxisAlignedRect portalRect = new AxisAlignedRect(Axis.X, new Vector(0, 64, 0), 2, 3);
+		Portal portal = new Portal(createWorld(), portalRect, new HashSet<>(), new HashSet<>(), new BlockVec(-1, 63, 0), new BlockVec(3, 68, 1));
+		return new BlockCache(portal, layout, new Vector(1, 0, 0), stone, mirror);
+	}
+	
+	/**
+	 * Writes a front cache file of stone blocks for all sections of the cache.
+	 */
+	private void writeStoredCache(BlockCacheStore store, File directory, BlockCache cache, WorldMirror mirror, long chunkStamp) throws IOException {
+		
+		PalettedBlockStorage[] storedSections = new PalettedBlockStorage[mirror.getSectionCount()];
+		
+		for (int i = 0; i < storedSections.length; i++) {
+			storedSections[i] = filledSection(stone);
+		}
+		
+		File cacheFile = new File(new File(directory, cache.getWorld().getUID().toString()), "0_64_0_front.bin");
+		store.write(new BlockCacheStore.CacheSnapshot(cacheFile, chunkStamp, layout, stone, new long[1], storedSections));
+	}
+	
+	private static PalettedBlockStorage filledSection(BlockType blockType) {
+		
+		PalettedBlockStorage section = new PalettedBlockStorage(MirrorSection.VOLUME);
+		
+		for (int i = 0; i < MirrorSection.VOLUME; i++) {
+			section.set(i, blockType);
+		}
+		
+		return section;
+	}
+	
+	/**
+	 * Creates a world with all chunks loaded and never inhabited.
+	 */
+	private static World createWorld() {
+		
+		UUID worldID = new UUID(1, 2);
+		Chunk chunk = createProxy(Chunk.class, (method, args) -> method.equals("getInhabitedTime") ? 0L : null);
+		
+		return createProxy(World.class, (method, args) -> {
+			
+			switch (method) {
+				case "getUID":
+					return worldID;
+				case "isChunkLoaded":
+					return args.length == 2 ? true : null;
+				case "getChunkAt":
+					return chunk;
+				default:
+					return null;
+			}
+		});
+	}
+	
+	private static <T> T createProxy(Class<T> type, BiFunction<String, Object[], Object> methods) {
+		
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, (proxy, method, args) -> {
+			
+			switch (method.getName()) {
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				case "equals":
+					return proxy == args[0];
+				case "toString":
+					return type.getSimpleName();
+			}
+			
+			Object result = methods.apply(method.getName(), args != null ? args : new Object[0]);
+			
+			if (result == null) {
+				throw new UnsupportedOperationException(method.getName() + " " + Arrays.toString(args));
+			}
+			
+			return result;
+		}));
+	}
+	
+	/**
+	 * Creates a block type from a minimal block data, since there is no server to create real ones.
+	 */
+	private static BlockType createBlockType(Material material, String asString) {
+		
+		BlockData blockData = (BlockData) Proxy.newProxyInstance(BlockData.class.getClassLoader(), new Class<?>[] {BlockData.class}, (proxy, method, args) -> {
+			
+			switch (method.getName()) {
+				case "getMaterial":
+					return material;
+				case "getAsString":
+				case "toString":
+					return asString;
+				case "clone":
+					return proxy;
+				case "hashCode":
+					return asString.hashCode();
+				case "equals":
+					return args[0] instanceof BlockData && asString.equals(((BlockData) args[0]).getAsString());
+				default:
+					throw new UnsupportedOperationException(method.getName());
+			}
+		});
+		
+		return BlockType.of(blockData);
+	}
+}
@@ -0,0 +1,95 @@
+package blockcachetests;
+
+import me.gorgeousone.netherview.blockcache.CacheLayout;
+import me.gorgeousone.netherview.threedstuff.BlockVec;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class CacheLayoutTests {
+	
+	@Test
+	public void indexRoundTrip() {
+		
+		CacheLayout layout = new CacheLayout(new BlockVec(-5, 10, -20), 3, 7, 4);
+		boolean[] usedIndices = new boolean[layout.getVolume()];
+		
+		for (int x = -5; x < -2; x++) {
+			for (int y = 10; y < 17; y++) {
+				for (int z = -20; z < -16; z++) {
+					
+					int index = layout.indexOf(x, y, z);
+					
+					Assertions.assertTrue(index >= 0 && index < layout.getVolume());
+					Assertions.assertFalse(usedIndices[index]);
+					usedIndices[index] = true;
+					
+					Assertions.assertEquals(new BlockVec(x, y, z), layout.posOf(index));
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void memoryOrder() {
+		
+		CacheLayout layout = new CacheLayout(new BlockVec(0, 0, 0), 3, 5, 4);
+		
+		Assertions.assertEquals(1, layout.indexOf(0, 1, 0));
+		Assertions.assertEquals(layout.getStrideZ(), layout.indexOf(0, 0, 1));
+		Assertions.assertEquals(layout.getStrideX(), layout.indexOf(1, 0, 0));
+		Assertions.assertEquals(layout.getVolume() - 1, layout.indexOf(2, 4, 3));
+	}
+	
+	@Test
+	public void positionsOutOfBounds() {
+		
+		CacheLayout layout = new CacheLayout(new BlockVec(-5, 10, -20), 3, 7, 4);
+		
+		Assertions.assertEquals(-1, layout.indexOf(-6, 10, -20));
+		Assertions.assertEquals(-1, layout.indexOf(-2, 10, -20));
+		Assertions.assertEquals(-1, layout.indexOf(-5, 9, -20));
+		Assertions.assertEquals(-1, layout.indexOf(-5, 17, -20));
+		Assertions.assertEquals(-1, layout.indexOf(-5, 10, -21));
+		Assertions.assertEquals(-1, layout.indexOf(-5, 10, -16));
+		
+		Assertions.assertTrue(layout.contains(-3, 16, -17));
+		Assertions.assertFalse(layout.contains(new BlockVec(-3, 17, -17)));
+		Assertions.assertEquals(new BlockVec(-2, 17, -16), layout.getMax());
+	}
+	
+	@Test
+	public void walkClampedBounds() {
+		
+		CacheLayout layout = new CacheLayout(new BlockVec(-5, 10, -20), 3, 7, 4);
+		List<Integer> visitedIndices = new ArrayList<>();
+		
+		layout.forEachBlockIn(-10, 15, -18, -4, 100, -17, (index, x, y, z) -> {
+			
+			Assertions.assertEquals(layout.indexOf(x, y, z), index);
+			Assertions.assertTrue(x >= -5 && x < -4);
+			Assertions.assertTrue(y >= 15 && y < 17);
+			Assertions.assertEquals(-18, z);
+			visitedIndices.add(index);
+		});
+		
+		Assertions.assertEquals(2, visitedIndices.size());
+		Assertions.assertTrue(visitedIndices.get(0) < visitedIndices.get(1));
+		
+		List<Integer> allIndices = new ArrayList<>();
+		layout.forEachBlock((index, x, y, z) -> allIndices.add(index));
+		
+		Assertions.assertEquals(layout.getVolume(), allIndices.size());
+		
+		for (int i = 0; i < allIndices.size(); i++) {
+			Assertions.assertEquals(i, (int) allIndices.get(i));
+		}
+	}
+	
+	@Test
+	public void emptyLayout() {
+		Assertions.assertThrows(IllegalArgumentException.class, () -> new CacheLayout(new BlockVec(), 0, 1, 1));
+	}
+}
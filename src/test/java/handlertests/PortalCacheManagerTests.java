@@ -0,0 +1,123 @@
+package handlertests;
+
+import me.gorgeousone.netherview.blocktype.Axis;
+import me.gorgeousone.netherview.handlers.PortalCacheManager;
+import me.gorgeousone.netherview.portal.CacheState;
+import me.gorgeousone.netherview.portal.Portal;
+import me.gorgeousone.netherview.threedstuff.AxisAlignedRect;
+import me.gorgeousone.netherview.threedstuff.BlockVec;
+import org.bukkit.util.Vector;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+public class PortalCacheManagerTests {
+	
+	private final List<Portal> unloadedPortals = new ArrayList<>();
+	private final PortalCacheManager cacheManager = new PortalCacheManager(() -> 100, this::unloadCaches);
+	
+	@Test
+	public void unloadLeastRecentlyUsed() {
+		
+		Portal portal1 = createPortal(0);
+		Portal portal2 = createPortal(10);
+		Portal portal3 = createPortal(20);
+		
+		cacheManager.addBytes(portal1, 40);
+		cacheManager.touch(portal1);
+		cacheManager.addBytes(portal2, 40);
+		cacheManager.touch(portal2);
+		cacheManager.touch(portal1);
+		
+		Assertions.assertTrue(unloadedPortals.isEmpty());
+		
+		cacheManager.addBytes(portal3, 40);
+		cacheManager.touch(portal3);
+		
+		Assertions.assertEquals(List.of(portal2), unloadedPortals);
+		Assertions.assertEquals(80, cacheManager.getTotalBytes());
+		Assertions.assertEquals(0, cacheManager.getBytes(portal2));
+		Assertions.assertEquals(2, cacheManager.getCachedPortalCount());
+	}
+	
+	@Test
+	public void keepViewedPortalOfOneWayLink() {
+		
+		Portal portal1 = createPortal(0);
+		Portal portal2 = createPortal(10);
+		Portal portal3 = createPortal(20);
+		
+		//the counter portal links on to a third portal, not back to the viewed portal
+		portal1.setLinkedTo(portal2);
+		portal2.setLinkedTo(portal3);
+		
+		cacheManager.addBytes(portal3, 20);
+		cacheManager.touch(portal3);
+		cacheManager.addBytes(portal1, 60);
+		cacheManager.addBytes(portal2, 60);
+		cacheManager.touch(portal1, portal2);
+		
+		//the linked pair alone exceeds the budget but is kept
+		Assertions.assertEquals(List.of(portal3), unloadedPortals);
+		Assertions.assertEquals(120, cacheManager.getTotalBytes());
+		Assertions.assertEquals(2, cacheManager.getCachedPortalCount());
+	}
+	
+	@Test
+	public void onlyTrackReadyPortals() {
+		
+		Portal portal = createPortal(0);
+		Portal counterPortal = createPortal(10);
+		Portal loadingPortal = createPortal(20);
+		
+		counterPortal.transitionCacheState(CacheState.READY, CacheState.UNLOADED);
+		loadingPortal.transitionCacheState(CacheState.READY, CacheState.LOADING);
+		
+		cacheManager.touch(portal, counterPortal);
+		cacheManager.touch(loadingPortal);
+		Assertions.assertEquals(1, cacheManager.getCachedPortalCount());
+		
+		//the caches finished loading
+		loadingPortal.transitionCacheState(CacheState.LOADING, CacheState.READY);
+		cacheManager.touch(loadingPortal);
+		Assertions.assertEquals(2, cacheManager.getCachedPortalCount());
+	}
+	
+	@Test
+	public void passedOnBytesAddUpToTotal() {
+		
+		Portal portal1 = createPortal(0);
+		Portal portal2 = createPortal(10);
+		
+		//a shared section charged to the first portal is passed on when the first portal releases it
+		cacheManager.addBytes(portal1, 30);
+		cacheManager.addBytes(portal1, 25);
+		cacheManager.addBytes(portal1, -25);
+		cacheManager.addBytes(portal2, 25);
+		
+		Assertions.assertEquals(30, cacheManager.getBytes(portal1));
+		Assertions.assertEquals(25, cacheManager.getBytes(portal2));
+		Assertions.assertEquals(55, cacheManager.getTotalBytes());
+		
+		cacheManager.addBytes(portal1, -30);
+		cacheManager.addBytes(portal2, -25);
+		
+		Assertions.assertEquals(0, cacheManager.getTotalBytes());
+	}
+	
+	private void unloadCaches(Portal portal) {
+		unloadedPortals.add(portal);
+		cacheManager.addBytes(portal, -cacheManager.getBytes(portal));
+	}
+	
+	private static Portal createPortal(int x) {
+		
+		AxisAlignedRect portalRect = new AxisAlignedRect(Axis.X, new Vector(x, 64, 0), 2, 3);
+		Portal portal = new Portal(null, portalRect, new HashSet<>(), new HashSet<>(), new BlockVec(x, 63, 0), new BlockVec(x + 4, 69, 1));
+		portal.transitionCacheState(CacheState.UNLOADED, CacheState.READY);
+		return portal;
+	}
+}
@@ -0,0 +1,142 @@
+package threedtests;
+
+import me.gorgeousone.netherview.blockcache.CacheLayout;
+import me.gorgeousone.netherview.blockcache.CornerGrid;
+import me.gorgeousone.netherview.blocktype.Axis;
+import me.gorgeousone.netherview.threedstuff.AxisAlignedRect;
+import me.gorgeousone.netherview.threedstuff.BlockVec;
+import me.gorgeousone.netherview.threedstuff.viewfrustum.ViewFrustum;
+import org.bukkit.util.Vector;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Compares the layer wise frustum traversal with brute force checks of every point.
+ */
+public class FrustumTraversalTests {
+	
+	private static final int RANGE = 16;
+	
+	@Test
+	public void crossSectionsMatchContainedPoints() {
+		
+		Random random = new Random(7);
+		
+		for (int i = 0; i < 100; i++) {
+			
+			ViewFrustum frustum = createRandomFrustum(random);
+			boolean isAxisX = frustum.getNearPlaneRect().getAxis() == Axis.X;
+			
+			Set<BlockVec> containedPoints = new HashSet<>();
+			
+			for (int x = -RANGE; x <= RANGE; x++) {
+				for (int y = -RANGE; y <= RANGE; y++) {
+					for (int z = -RANGE; z <= RANGE; z++) {
+						
+						if (frustum.contains(x, y, z)) {
+							containedPoints.add(new BlockVec(x, y, z));
+						}
+					}
+				}
+			}
+			
+			Set<BlockVec> sectionPoints = new HashSet<>();
+			
+			for (int depth = -RANGE; depth <= RANGE; depth++) {
+				
+				AxisAlignedRect crossSection = frustum.getCrossSection(depth);
+				
+				if (crossSection == null) {
+					continue;
+				}
+				
+				Vector min = crossSection.getMin();
+				Vector max = crossSection.getMax();
+				
+				int minWidth = Math.max(-RANGE, (int) Math.ceil(isAxisX ? min.getX() : min.getZ()));
+				int maxWidth = Math.min(RANGE, (int) Math.floor(isAxisX ? max.getX() : max.getZ()));
+				int minY = Math.max(-RANGE, (int) Math.ceil(min.getY()));
+				int maxY = Math.min(RANGE, (int) Math.floor(max.getY()));
+				
+				for (int width = minWidth; width <= maxWidth; width++) {
+					for (int y = minY; y <= maxY; y++) {
+						sectionPoints.add(isAxisX ? new BlockVec(width, y, depth) : new BlockVec(depth, y, width));
+					}
+				}
+			}
+			
+			Assertions.assertEquals(containedPoints, sectionPoints);
+		}
+	}
+	
+	@Test
+	public void cornerGridMatchesBlocksAroundCorners() {
+		
+		Random random = new Random(11);
+		
+		for (int i = 0; i < 100; i++) {
+			
+			ViewFrustum frustum = createRandomFrustum(random);
+			CacheLayout layout = new CacheLayout(
+					new BlockVec(random.nextInt(8) - 12, random.nextInt(8) - 12, random.nextInt(8) - 12),
+					1 + random.nextInt(16),
+					1 + random.nextInt(20),
+					1 + random.nextInt(16));
+			
+			BlockVec min = layout.getMin();
+			BlockVec max = layout.getMax();
+			
+			CornerGrid corners = new CornerGrid(layout);
+			Set<BlockVec> blocksAroundCorners = new HashSet<>();
+			
+			//corners range from the min to the (exclusive) max of the layout
+			for (int x = min.getX(); x <= max.getX(); x++) {
+				for (int z = min.getZ(); z <= max.getZ(); z++) {
+					for (int y = min.getY(); y <= max.getY(); y++) {
+						
+						if (!frustum.contains(x, y, z)) {
+							continue;
+						}
+						
+						corners.markColumn(x, z, y, y);
+						
+						for (int dx = -1; dx <= 0; dx++) {
+							for (int dy = -1; dy <= 0; dy++) {
+								for (int dz = -1; dz <= 0; dz++) {
+									
+									if (layout.contains(x + dx, y + dy, z + dz)) {
+										blocksAroundCorners.add(new BlockVec(x + dx, y + dy, z + dz));
+									}
+								}
+							}
+						}
+					}
+				}
+			}
+			
+			Set<BlockVec> touchedBlocks = new HashSet<>();
+			BitSet touchedIndices = corners.getTouchedBlocks();
+			
+			for (int index = touchedIndices.nextSetBit(0); index >= 0; index = touchedIndices.nextSetBit(index + 1)) {
+				touchedBlocks.add(layout.posOf(index));
+			}
+			
+			Assertions.assertEquals(blocksAroundCorners, touchedBlocks);
+		}
+	}
+	
+	private ViewFrustum createRandomFrustum(Random random) {
+		
+		Axis axis = random.nextBoolean() ? Axis.X : Axis.Z;
+		Vector rectPos = new Vector(random.nextDouble() * 4 - 2, random.nextDouble() * 4 - 2, random.nextDouble() * 4 - 2);
+		AxisAlignedRect nearPlane = new AxisAlignedRect(axis, rectPos, 1 + random.nextDouble() * 4, 1 + random.nextDouble() * 4);
+		
+		Vector viewPoint = new Vector(random.nextDouble() * 16 - 8, random.nextDouble() * 16 - 8, random.nextDouble() * 16 - 8);
+		return new ViewFrustum(viewPoint, nearPlane, 4 + random.nextInt(8));
+	}
+}
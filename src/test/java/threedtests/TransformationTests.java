@@ -80,4 +80,21 @@ public class TransformationTests {
 		
 		Assertions.assertEquals(point, transformedPoint);
 	}
+	
+	@Test
+	public void transformCoordinates() {
+		
+		Transform transform = new Transform();
+		transform.setTranslation(new BlockVec(100, 5, -30));
+		transform.setRotCenter(new BlockVec(50, 0, 20));
+		transform.setRotY90DegRight();
+		transform.invert();
+		
+		BlockVec point = new BlockVec(-7, 64, 13);
+		BlockVec transformedPoint = transform.transformVec(point.clone());
+		
+		Assertions.assertEquals(transformedPoint.getX(), transform.transformX(point.getX(), point.getZ()));
+		Assertions.assertEquals(transformedPoint.getY(), transform.transformY(point.getY()));
+		Assertions.assertEquals(transformedPoint.getZ(), transform.transformZ(point.getX(), point.getZ()));
+	}
 }
@@ -2,6 +2,7 @@ package threedtests;
 
 import me.gorgeousone.netherview.threedstuff.AxisAlignedRect;
 import me.gorgeousone.netherview.blocktype.Axis;
+import me.gorgeousone.netherview.threedstuff.viewfrustum.ViewFrustum;
 import org.bukkit.util.Vector;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
@@ -20,6 +21,33 @@ public class ViewFrustumTests {
 		Assertions.assertFalse(rect.contains(notContainedPoint));
 	}
 	
+	@Test
+	public void pointInFrustum() {
+		
+		AxisAlignedRect nearPlane = new AxisAlignedRect(Axis.X, new Vector(0, 0, 0), 4, 4);
+		Vector viewPoint = new Vector(2, 2, -2);
+		ViewFrustum frustum = new ViewFrustum(viewPoint, nearPlane, 10);
+		
+		Assertions.assertTrue(frustum.contains(new Vector(2, 2, 1)));
+		Assertions.assertTrue(frustum.contains(new Vector(4, 4, 0)));
+		Assertions.assertTrue(frustum.contains(new Vector(-0.9, 2, 1)));
+		Assertions.assertFalse(frustum.contains(new Vector(-1.1, 2, 1)));
+		Assertions.assertFalse(frustum.contains(new Vector(2, 2, -1)));
+		Assertions.assertFalse(frustum.contains(new Vector(2, 2, 12)));
+	}
+	
+	@Test
+	public void blockInFrustum() {
+		
+		AxisAlignedRect nearPlane = new AxisAlignedRect(Axis.Z, new Vector(0, 0, 0), 2, 2);
+		ViewFrustum frustum = new ViewFrustum(new Vector(-1, 1, 1), nearPlane, 10);
+		
+		Assertions.assertTrue(frustum.containsBlock(0, 0, 0));
+		Assertions.assertTrue(frustum.containsBlock(2, 3, 1));
+		Assertions.assertFalse(frustum.containsBlock(2, 6, 1));
+		Assertions.assertFalse(frustum.containsBlock(-2, 0, 0));
+	}
+	
 //	@Test
 //	public void pointInCone() {
 //